@@ -0,0 +1,168 @@
+package com.yuyuko.selector.benchmark;
+
+import com.yuyuko.selector.Channel;
+import com.yuyuko.selector.ChannelAlreadyClosedException;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Control;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Channel读写的吞吐与延迟，覆盖无缓冲/有缓冲以及SPSC、MPSC、MPMC三种拓扑
+ * <p>
+ * 读写两端是阻塞的，迭代结束时总会有线程停在park上，所以第一个看到
+ * {@link Control#stopMeasurement}的线程负责关闭channel，把其余线程放出来，
+ * 下一轮迭代重新创建channel
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelBenchmark {
+    private static final Integer DATA = 1;
+
+    private static final int BATCH_SIZE = 64;
+
+    @State(Scope.Group)
+    public static class ChannelState {
+        @Param({"0", "1", "16", "1024"})
+        int bufferSize;
+
+        @Param({"true", "false"})
+        boolean fair;
+
+        /**
+         * 对比开启统计前后的开销
+         */
+        @Param({"false", "true"})
+        boolean metrics;
+
+        Channel<Integer> channel;
+
+        AtomicBoolean closed;
+
+        /**
+         * 只有一个线程drain，放在Group里也没有竞争
+         */
+        final List<Integer> batch = new ArrayList<>(BATCH_SIZE);
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            channel = Channel.<Integer>builder().bufferSize(bufferSize).fair(fair).metrics(metrics).build();
+            closed = new AtomicBoolean();
+        }
+
+        void write(Control control) {
+            try {
+                channel.write(DATA);
+            } catch (ChannelAlreadyClosedException ignored) {
+            }
+            closeIfStopped(control);
+        }
+
+        int drain(Control control) {
+            int n = channel.drainTo(batch, BATCH_SIZE);
+            batch.clear();
+            closeIfStopped(control);
+            return n;
+        }
+
+        Integer read(Control control) {
+            Integer data = channel.read();
+            closeIfStopped(control);
+            return data;
+        }
+
+        private void closeIfStopped(Control control) {
+            if (control.stopMeasurement && closed.compareAndSet(false, true))
+                channel.close();
+        }
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public void spscWrite(ChannelState state, Control control) {
+        state.write(control);
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public Integer spscRead(ChannelState state, Control control) {
+        return state.read(control);
+    }
+
+    /**
+     * 与spsc相同的拓扑，但channel声明为{@link Channel.Builder#spsc}，用来对比两种缓冲区
+     */
+    @State(Scope.Group)
+    public static class SpscState extends ChannelState {
+        @Override
+        @Setup(Level.Iteration)
+        public void setUp() {
+            channel = Channel.<Integer>builder().bufferSize(bufferSize).fair(fair).spsc(true).metrics(metrics).build();
+            closed = new AtomicBoolean();
+        }
+    }
+
+    @Benchmark
+    @Group("spscMode")
+    @GroupThreads(1)
+    public void spscModeWrite(SpscState state, Control control) {
+        state.write(control);
+    }
+
+    @Benchmark
+    @Group("spscMode")
+    @GroupThreads(1)
+    public Integer spscModeRead(SpscState state, Control control) {
+        return state.read(control);
+    }
+
+    @Benchmark
+    @Group("mpsc")
+    @GroupThreads(4)
+    public void mpscWrite(ChannelState state, Control control) {
+        state.write(control);
+    }
+
+    @Benchmark
+    @Group("mpsc")
+    @GroupThreads(1)
+    public Integer mpscRead(ChannelState state, Control control) {
+        return state.read(control);
+    }
+
+    @Benchmark
+    @Group("mpmc")
+    @GroupThreads(4)
+    public void mpmcWrite(ChannelState state, Control control) {
+        state.write(control);
+    }
+
+    @Benchmark
+    @Group("mpmc")
+    @GroupThreads(4)
+    public Integer mpmcRead(ChannelState state, Control control) {
+        return state.read(control);
+    }
+
+    @Benchmark
+    @Group("mpscBatch")
+    @GroupThreads(4)
+    public void mpscBatchWrite(ChannelState state, Control control) {
+        state.write(control);
+    }
+
+    @Benchmark
+    @Group("mpscBatch")
+    @GroupThreads(1)
+    public int mpscBatchDrain(ChannelState state, Control control) {
+        return state.drain(control);
+    }
+}
@@ -0,0 +1,70 @@
+package com.yuyuko.selector.benchmark;
+
+import com.yuyuko.selector.Channel;
+import com.yuyuko.selector.SelectionKey;
+import com.yuyuko.selector.Selector;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 汇聚多个channel时，逐个select()和一次selectReady()的对比
+ * <p>
+ * 每次调用前所有channel都有一个数据，一次操作把它们全部读出来
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanInBenchmark {
+    private static final Integer DATA = 1;
+
+    @Param({"8", "32", "64"})
+    int keyCount;
+
+    final List<Channel<Integer>> channels = new ArrayList<>();
+
+    Selector selector;
+
+    final List<SelectionKey<?>> ready = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        selector = Selector.open();
+        for (int i = 0; i < keyCount; i++) {
+            Channel<Integer> channel = new Channel<>(1);
+            channels.add(channel);
+            selector.register(channel, SelectionKey.read());
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() {
+        for (Channel<Integer> channel : channels)
+            channel.tryWrite(DATA);
+    }
+
+    @Benchmark
+    public int select() {
+        int n = 0;
+        for (int i = 0; i < keyCount; i++)
+            n += (Integer) selector.select().data();
+        return n;
+    }
+
+    @Benchmark
+    public int selectReady() {
+        int n = 0;
+        while (n < keyCount) {
+            ready.clear();
+            selector.selectReady(ready);
+            for (SelectionKey<?> key : ready)
+                n += (Integer) key.data();
+        }
+        return n;
+    }
+}
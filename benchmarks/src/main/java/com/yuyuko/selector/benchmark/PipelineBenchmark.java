@@ -0,0 +1,66 @@
+package com.yuyuko.selector.benchmark;
+
+import com.yuyuko.selector.Channel;
+import com.yuyuko.selector.Pipeline;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 三个map/filter阶段融合成一个任务和每个阶段之间都隔一个channel的对比
+ * <p>
+ * 一次操作写入count个数据，读完流水线的输出
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+    private static final Predicate<Integer> EVEN = i -> (i & 1) == 0;
+
+    private static final Function<Integer, Integer> INC = i -> i + 1;
+
+    @Param({"16", "256"})
+    int bufferSize;
+
+    @Param({"10000"})
+    int count;
+
+    @Benchmark
+    public long fused() {
+        Channel<Integer> source = new Channel<>(bufferSize);
+        Channel<Integer> out = Pipeline.from(source)
+                .bufferSize(bufferSize)
+                .map(INC)
+                .filter(EVEN)
+                .map(INC)
+                .channel();
+        return run(source, out);
+    }
+
+    @Benchmark
+    public long perStage() {
+        Channel<Integer> source = new Channel<>(bufferSize);
+        Channel<Integer> mapped = Pipeline.from(source).bufferSize(bufferSize).map(INC).channel();
+        Channel<Integer> filtered = Pipeline.from(mapped).bufferSize(bufferSize).filter(EVEN).channel();
+        Channel<Integer> out = Pipeline.from(filtered).bufferSize(bufferSize).map(INC).channel();
+        return run(source, out);
+    }
+
+    private long run(Channel<Integer> source, Channel<Integer> out) {
+        Thread.startVirtualThread(() -> {
+            for (int i = 0; i < count; i++)
+                source.write(i);
+            source.close();
+        });
+        long sum = 0;
+        for (int i : out)
+            sum += i;
+        return sum;
+    }
+}
@@ -0,0 +1,77 @@
+package com.yuyuko.selector.benchmark;
+
+import com.yuyuko.selector.Channel;
+import com.yuyuko.selector.SelectionKey;
+import com.yuyuko.selector.Selector;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单线程下Selector.select()的开销
+ * <p>
+ * 每个case都是bufferSize为1的channel上的写操作：
+ * 有fallback时所有channel都是满的，select总是走fallback；
+ * 没有fallback时只有一个channel有空间，select写进去之后再读出来，恢复到初始状态
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SelectorBenchmark {
+    private static final Integer DATA = 1;
+
+    @Param({"2", "8", "64"})
+    int keyCount;
+
+    @Param({"true", "false"})
+    boolean fallback;
+
+    final List<Channel<Integer>> channels = new ArrayList<>();
+
+    Selector reused;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        for (int i = 0; i < keyCount; i++) {
+            Channel<Integer> channel = new Channel<>(1);
+            if (fallback || i > 0)
+                channel.write(DATA);
+            channels.add(channel);
+        }
+        reused = open();
+    }
+
+    private Selector open() {
+        Selector selector = Selector.open();
+        for (Channel<Integer> channel : channels)
+            selector.register(channel, SelectionKey.write(DATA));
+        if (fallback)
+            selector.fallback(SelectionKey.fallback());
+        return selector;
+    }
+
+    @Benchmark
+    public SelectionKey<?> select() {
+        return select(open());
+    }
+
+    /**
+     * 事件循环里复用同一个Selector
+     */
+    @Benchmark
+    public SelectionKey<?> selectReused() {
+        return select(reused);
+    }
+
+    private SelectionKey<?> select(Selector selector) {
+        SelectionKey<?> key = selector.select();
+        if (key.type() == SelectionKey.WRITE)
+            key.channel().read();
+        return key;
+    }
+}
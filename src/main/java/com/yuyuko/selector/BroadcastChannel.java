@@ -0,0 +1,343 @@
+package com.yuyuko.selector;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 广播的channel，写入的每个数据都会交给每个订阅者
+ * <p>
+ * 所有订阅者共享一个环形缓冲区，每个订阅者只有一个自己的读位置（Disruptor的做法），
+ * 写入只加一次锁、写一次槽位，不会给每个订阅者拷贝一份。
+ * 最慢的订阅者落后一整圈时写者阻塞，不想再收的订阅者要关闭自己的channel，否则会拖住写者
+ * <p>
+ * {@link #subscribe()}返回的是一个只读的{@link Channel}，可以像普通channel一样读、注册到{@link Selector}上，
+ * 同一个订阅上的多个读者互相竞争，每个数据只会被其中一个读到
+ */
+public class BroadcastChannel<T> {
+    private final Object[] ring;
+
+    private final int capacity;
+
+    /**
+     * 已经写入的个数，下一个数据的序号，在锁内更新
+     */
+    private volatile long published;
+
+    /**
+     * 这个序号之前的槽位已经被所有订阅者读过并清空，在锁内更新
+     */
+    private long cleared;
+
+    private volatile Subscription<T>[] subscriptions;
+
+    private volatile boolean closed;
+
+    /**
+     * 写者之间互斥，订阅者的列表也在锁内更新
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * 等待空间的写者个数，订阅者读完之后据此判断要不要唤醒写者
+     */
+    private volatile int waitingWriters;
+
+    public BroadcastChannel(int bufferSize) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("bufferSize must be positive");
+        capacity = bufferSize;
+        ring = new Object[bufferSize];
+        subscriptions = newSubscriptions(0);
+    }
+
+    /**
+     * 订阅之后写入的数据，订阅之前的收不到
+     *
+     * @throws ChannelAlreadyClosedException 通道已关闭
+     */
+    public Channel<T> subscribe() {
+        lock.lock();
+        try {
+            if (closed)
+                throw new ChannelAlreadyClosedException("subscribe to closed channel");
+            Subscription<T> subscription = new Subscription<>(this, published);
+            Subscription<T>[] old = subscriptions;
+            Subscription<T>[] updated = Arrays.copyOf(old, old.length + 1);
+            updated[old.length] = subscription;
+            subscriptions = updated;
+            return subscription;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 最慢的订阅者落后一整圈时阻塞，没有订阅者时数据直接丢掉
+     *
+     * @throws ChannelAlreadyClosedException 通道已关闭
+     */
+    public void write(T data) {
+        publish(data, true);
+    }
+
+    /**
+     * 不阻塞地写入
+     *
+     * @return 最慢的订阅者落后一整圈时返回false
+     * @throws ChannelAlreadyClosedException 通道已关闭
+     */
+    public boolean tryWrite(T data) {
+        return publish(data, false);
+    }
+
+    private boolean publish(T data, boolean block) {
+        lock.lock();
+        try {
+            for (; ; ) {
+                if (closed)
+                    throw new ChannelAlreadyClosedException("send to closed channel");
+                long seq = published;
+                long min = minCursor(seq);
+                clear(min);
+                if (seq - min < capacity) {
+                    //没有订阅者时不用留着
+                    if (subscriptions.length > 0)
+                        ring[index(seq)] = data;
+                    published = seq + 1;
+                    break;
+                }
+                if (!block)
+                    return false;
+                waitingWriters++;
+                try {
+                    //登记之后再看一次，订阅者可能刚好读走了，但没看到登记
+                    if (seq - minCursor(seq) >= capacity)
+                        notFull.awaitUninterruptibly();
+                } finally {
+                    waitingWriters--;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        //不持有锁，订阅者读的时候会反过来拿这把锁
+        for (Subscription<T> subscription : subscriptions)
+            subscription.signalReaders();
+        return true;
+    }
+
+    /**
+     * @param seq 没有订阅者时返回它
+     */
+    private long minCursor(long seq) {
+        long min = seq;
+        for (Subscription<T> subscription : subscriptions)
+            min = Math.min(min, subscription.cursor.getPosition());
+        return min;
+    }
+
+    /**
+     * 清空所有订阅者都已经读过的槽位，不让读过的数据一直被缓冲区引用着，需持有锁
+     *
+     * @param min 最慢的订阅者的位置
+     */
+    private void clear(long min) {
+        for (long seq = Math.max(cleared, min - capacity); seq < min; seq++)
+            ring[index(seq)] = null;
+        cleared = Math.max(cleared, min);
+    }
+
+    /**
+     * 订阅者读走了数据，有写者在等空间就唤醒它
+     */
+    private void signalWriters() {
+        if (waitingWriters == 0)
+            return;
+        lock.lock();
+        try {
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void unsubscribe(Subscription<T> subscription) {
+        lock.lock();
+        try {
+            Subscription<T>[] old = subscriptions;
+            int i = Arrays.asList(old).indexOf(subscription);
+            if (i < 0)
+                return;
+            Subscription<T>[] updated = newSubscriptions(old.length - 1);
+            System.arraycopy(old, 0, updated, 0, i);
+            System.arraycopy(old, i + 1, updated, i, old.length - i - 1);
+            subscriptions = updated;
+            //它可能是最慢的那个
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 关闭之后不能再写，所有订阅者读完缓冲区里剩下的之后读到null
+     *
+     * @throws ChannelAlreadyClosedException 通道已关闭
+     */
+    public void close() {
+        Subscription<T>[] snapshot;
+        lock.lock();
+        try {
+            if (closed)
+                throw new ChannelAlreadyClosedException("close of closed channel");
+            closed = true;
+            notFull.signalAll();
+            snapshot = subscriptions;
+        } finally {
+            lock.unlock();
+        }
+        for (Subscription<T> subscription : snapshot) {
+            try {
+                subscription.close();
+            } catch (ChannelAlreadyClosedException ignored) {
+                //订阅者自己先关了
+            }
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private int index(long seq) {
+        return (int) (seq % capacity);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Subscription<T>[] newSubscriptions(int length) {
+        return (Subscription<T>[]) new Subscription<?>[length];
+    }
+
+    /**
+     * 一个订阅者，读的时候从共享的缓冲区里取，不能写
+     */
+    private static final class Subscription<T> extends Channel<T> {
+        private final BroadcastChannel<T> broadcast;
+
+        private final Cursor<T> cursor;
+
+        Subscription(BroadcastChannel<T> broadcast, long start) {
+            this(broadcast, new Cursor<>(broadcast, start));
+        }
+
+        private Subscription(BroadcastChannel<T> broadcast, Cursor<T> cursor) {
+            super(Channel.<T>builder().bufferSize(broadcast.capacity), size -> cursor);
+            this.broadcast = broadcast;
+            this.cursor = cursor;
+        }
+
+        /**
+         * 关闭订阅，不再拖住写者
+         */
+        @Override
+        public void close() {
+            super.close();
+            broadcast.unsubscribe(this);
+        }
+
+        @Override
+        boolean writeInternal(Node<T> src, boolean select, boolean timed, long nanos) {
+            throw new UnsupportedOperationException("subscription is read-only");
+        }
+
+        @Override
+        public void writeAll(Collection<? extends T> c) {
+            throw new UnsupportedOperationException("subscription is read-only");
+        }
+
+        @Override
+        void checkKey(SelectionKey<T> key) {
+            super.checkKey(key);
+            if (key.type() == SelectionKey.WRITE)
+                throw new IllegalArgumentException("subscription is read-only");
+        }
+    }
+
+    /**
+     * 订阅者的读位置，对订阅者的channel来说就是它的缓冲区
+     */
+    private static final class Cursor<T> implements Buffer<T> {
+        private static final VarHandle POSITION;
+
+        static {
+            try {
+                POSITION = MethodHandles.lookup().findVarHandle(Cursor.class, "position", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private final BroadcastChannel<T> broadcast;
+
+        private volatile long position;
+
+        Cursor(BroadcastChannel<T> broadcast, long position) {
+            this.broadcast = broadcast;
+            this.position = position;
+        }
+
+        long getPosition() {
+            return position;
+        }
+
+        @Override
+        public boolean offer(Channel.Node<T> from) {
+            throw new UnsupportedOperationException("subscription is read-only");
+        }
+
+        /**
+         * 先读槽位再移动位置，位置没动之前写者不会覆盖这个槽位
+         */
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean poll(Channel.Node<T> to) {
+            for (; ; ) {
+                long pos = position;
+                if (pos >= broadcast.published)
+                    return false;
+                Object data = broadcast.ring[broadcast.index(pos)];
+                if (POSITION.compareAndSet(this, pos, pos + 1)) {
+                    to.setData((T) data);
+                    broadcast.signalWriters();
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.max(0, broadcast.published - position);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return position >= broadcast.published;
+        }
+
+        @Override
+        public boolean isFull() {
+            return size() >= broadcast.capacity;
+        }
+
+        @Override
+        public int capacity() {
+            return broadcast.capacity;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.yuyuko.selector;
+
+/**
+ * channel的缓冲区，数据经由{@link Channel.Node}进出，
+ * 引用放在{@link Channel.Node#getData()}，原始类型放在{@link Channel.Node#getBits()}，
+ * 这样原始类型的channel从头到尾都不用装箱
+ * <p>
+ * 实现必须是线程安全且不阻塞的：{@link #offer}返回false时缓冲区是真的满了，
+ * {@link #poll}返回false时是真的空了，channel据此决定是否要去park
+ */
+interface Buffer<T> {
+    /**
+     * 把节点里的数据放进缓冲区，失败时不改动节点
+     *
+     * @return 缓冲区已满返回false
+     */
+    boolean offer(Channel.Node<T> from);
+
+    /**
+     * 取出一个数据放进节点，失败时不改动节点
+     *
+     * @return 缓冲区为空返回false
+     */
+    boolean poll(Channel.Node<T> to);
+
+    int size();
+
+    boolean isEmpty();
+
+    boolean isFull();
+
+    /**
+     * 节点里的数据现在能不能放进缓冲区，定长的缓冲区就是没满，变长的还要看记录的长度。
+     * 锁外调用时只作参考
+     */
+    default boolean canOffer(Channel.Node<T> from) {
+        return !isFull();
+    }
+
+    int capacity();
+}
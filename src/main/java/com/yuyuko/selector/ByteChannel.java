@@ -0,0 +1,186 @@
+package com.yuyuko.selector;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 传变长字节记录的channel，缓冲区是堆外的环形缓冲区，bufferSize按字节算，
+ * 每条记录另占{@link ByteRingBuffer#HEADER}字节。阻塞、关闭和select与{@link Channel}相同
+ * <p>
+ * 写入时把ByteBuffer从position到limit的字节拷贝进来，不改变它的位置，写完之后可以马上复用。
+ * 读出的是只读的视图，指向每个线程自己的堆外暂存区，在这个线程下一次从任意ByteChannel读之前有效，
+ * 需要留着就自己拷贝，或者用{@link #read(ByteBuffer)}直接拷贝到自己的ByteBuffer里。
+ * 整个过程不会为每条记录分配堆上的数组
+ * <p>
+ * {@link #readAsync()}的每条记录有自己的暂存区，一直有效
+ */
+public class ByteChannel extends Channel<ByteBuffer> {
+    /**
+     * 每个线程读时用的暂存区，按需变大
+     */
+    private static final ThreadLocal<ByteBuffer> SCRATCH = new ThreadLocal<>();
+
+    private static final int MIN_SCRATCH_SIZE = 256;
+
+    /**
+     * 分配过的暂存区个数，同步的读和select都复用线程的暂存区，只在记录变长时才会增加
+     */
+    static final LongAdder SCRATCH_ALLOCATIONS = new LongAdder();
+
+    /**
+     * 单条记录的最大字节数，有缓冲时要能放进缓冲区
+     */
+    private final int maxRecordSize;
+
+    public ByteChannel() {
+        this(0);
+    }
+
+    /**
+     * @param bufferSize 缓冲区的字节数
+     */
+    public ByteChannel(int bufferSize) {
+        this(Channel.<ByteBuffer>builder().bufferSize(bufferSize));
+    }
+
+    /**
+     * 用{@link Channel#builder()}配置缓冲区、锁和等待策略，bufferSize按字节算
+     */
+    public ByteChannel(Builder<?> builder) {
+        super(builder, ByteRingBuffer::new);
+        maxRecordSize = builder.bufferSize() > 0 ? builder.bufferSize() - ByteRingBuffer.HEADER : Integer.MAX_VALUE;
+    }
+
+    /**
+     * 从channel读一条记录拷贝到dst，dst放不下时多出的部分被丢弃，与{@link java.nio.channels.DatagramChannel}相同
+     *
+     * @return 记录的完整长度，通道已关闭且缓冲区已取完返回-1
+     */
+    public int read(ByteBuffer dst) {
+        Node<ByteBuffer> node = localNode();
+        if (readInternal(node, false, false, 0L) != OK)
+            return -1;
+        int len = (int) node.getBits();
+        ByteBuffer scratch = keep(node);
+        int n = Math.min(len, dst.remaining());
+        dst.put(dst.position(), scratch, 0, n);
+        dst.position(dst.position() + n);
+        return len;
+    }
+
+    /**
+     * 读出的视图会被下一次读覆盖，所以每条记录都拷贝成一个新的堆上ByteBuffer
+     */
+    @Override
+    public int drainTo(Collection<? super ByteBuffer> c, int maxElements) {
+        Objects.requireNonNull(c);
+        int n = 0;
+        ReadResult<ByteBuffer> result;
+        while (n < maxElements && (result = tryRead()).isPresent()) {
+            c.add(detach(result.get()));
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * 读出的视图会被下一次读覆盖，遍历时拷贝成堆上的ByteBuffer
+     */
+    @Override
+    ByteBuffer detach(ByteBuffer record) {
+        return ByteBuffer.allocate(record.remaining()).put(record).flip();
+    }
+
+    /**
+     * 保证节点的暂存区至少有length字节，不够时换一个更大的，由缓冲区或者交接数据的线程调用
+     *
+     * @return 节点的暂存区
+     */
+    static ByteBuffer scratch(Node<ByteBuffer> node, int length) {
+        ByteBuffer scratch = node.getData();
+        if (scratch == null || scratch.capacity() < length) {
+            int size = Math.max(MIN_SCRATCH_SIZE, scratch == null ? 0 : scratch.capacity());
+            while (size < length)
+                size = size > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : size * 2;
+            scratch = ByteBuffer.allocateDirect(size);
+            SCRATCH_ALLOCATIONS.increment();
+            node.setData(scratch);
+        }
+        return scratch;
+    }
+
+    /**
+     * 读完之后把节点的暂存区留给当前线程，它可能已经被换成了更大的
+     */
+    private static ByteBuffer keep(Node<ByteBuffer> node) {
+        ByteBuffer scratch = node.getData();
+        node.setData(null);
+        if (SCRATCH.get() != scratch)
+            SCRATCH.set(scratch);
+        return scratch;
+    }
+
+    private void checkRecord(ByteBuffer data) {
+        if (data.remaining() > maxRecordSize)
+            throw new IllegalArgumentException("record of " + data.remaining() +
+                    " bytes exceeds max record size " + maxRecordSize);
+    }
+
+    @Override
+    void encode(Node<ByteBuffer> node, ByteBuffer data) {
+        checkRecord(data);
+        node.setData(data);
+    }
+
+    @Override
+    ByteBuffer decode(Node<ByteBuffer> node) {
+        int len = (int) node.getBits();
+        //异步的节点用完即弃，暂存区不用留给线程
+        ByteBuffer scratch = node.isAsync() ? node.getData() : keep(node);
+        return scratch.asReadOnlyBuffer().limit(len);
+    }
+
+    /**
+     * key的数据在注册时已经检查过
+     */
+    @Override
+    void encode(Node<ByteBuffer> node, SelectionKey<ByteBuffer> key) {
+        node.setData(key.data());
+    }
+
+    @Override
+    void decode(Node<ByteBuffer> node, SelectionKey<ByteBuffer> key) {
+        key.setData(decode(node));
+    }
+
+    /**
+     * 写者的ByteBuffer在它被唤醒之后就可能被改掉，必须拷贝
+     */
+    @Override
+    void transfer(Node<ByteBuffer> from, Node<ByteBuffer> to) {
+        ByteBuffer src = from.getData();
+        int len = src.remaining();
+        scratch(to, len).put(0, src, src.position(), len);
+        to.setBits(len);
+    }
+
+    @Override
+    void prepareRead(Node<ByteBuffer> node) {
+        if (!node.isAsync())
+            node.setData(SCRATCH.get());
+    }
+
+    @Override
+    boolean hasAvailableBufferSpace(SelectionKey<ByteBuffer> key) {
+        return buffer() != null && ((ByteRingBuffer) buffer()).hasRoom(key.data().remaining());
+    }
+
+    @Override
+    void checkKey(SelectionKey<ByteBuffer> key) {
+        super.checkKey(key);
+        if (key.type() == SelectionKey.WRITE)
+            checkRecord(key.data());
+    }
+}
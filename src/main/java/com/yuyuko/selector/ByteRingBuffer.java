@@ -0,0 +1,170 @@
+package com.yuyuko.selector;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 变长字节记录的环形缓冲区，放在堆外的direct ByteBuffer里，每条记录是4字节的长度加上内容，
+ * 记录可以跨过缓冲区末尾绕回开头
+ * <p>
+ * 记录不定长，没法像{@link RingBuffer}那样按槽位无锁，这里用一把只保护拷贝的小锁，
+ * 它总是最后加的锁，不会和channel的锁形成环
+ */
+final class ByteRingBuffer implements Buffer<ByteBuffer> {
+    /**
+     * 每条记录的长度头
+     */
+    static final int HEADER = Integer.BYTES;
+
+    private final ByteBuffer ring;
+
+    private final int capacity;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 读写位置，只增不减，需持有lock
+     */
+    private long head;
+
+    private long tail;
+
+    /**
+     * 已用的字节数和记录数，在锁内更新，在锁外读
+     */
+    private volatile int used;
+
+    private volatile int count;
+
+    ByteRingBuffer(int capacity) {
+        if (capacity < HEADER)
+            throw new IllegalArgumentException("capacity must not be less than " + HEADER);
+        this.capacity = capacity;
+        ring = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * 写入节点里ByteBuffer从position到limit的字节，不改变它的位置
+     */
+    @Override
+    public boolean offer(Channel.Node<ByteBuffer> from) {
+        ByteBuffer src = from.getData();
+        int len = src.remaining();
+        lock.lock();
+        try {
+            if (capacity - used < HEADER + len)
+                return false;
+            putInt(tail, len);
+            put(tail + HEADER, src, src.position(), len);
+            tail += HEADER + len;
+            used += HEADER + len;
+            count++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 记录拷贝到节点的ByteBuffer开头，长度放在{@link Channel.Node#getBits()}，
+     * 节点的ByteBuffer不够大时换一个更大的，见{@link ByteChannel#scratch}
+     */
+    @Override
+    public boolean poll(Channel.Node<ByteBuffer> to) {
+        lock.lock();
+        try {
+            if (count == 0)
+                return false;
+            int len = getInt(head);
+            get(head + HEADER, ByteChannel.scratch(to, len), len);
+            to.setBits(len);
+            head += HEADER + len;
+            used -= HEADER + len;
+            count--;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 记录数
+     */
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return 连一条空记录都放不下
+     */
+    @Override
+    public boolean isFull() {
+        return capacity - used < HEADER;
+    }
+
+    @Override
+    public boolean canOffer(Channel.Node<ByteBuffer> from) {
+        return hasRoom(from.getData().remaining());
+    }
+
+    /**
+     * 能否放下len字节的记录
+     */
+    boolean hasRoom(int len) {
+        return capacity - used >= HEADER + len;
+    }
+
+    /**
+     * @return 字节数
+     */
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    private int index(long pos) {
+        return (int) (pos % capacity);
+    }
+
+    private void put(long pos, ByteBuffer src, int offset, int len) {
+        int idx = index(pos);
+        int first = Math.min(len, capacity - idx);
+        ring.put(idx, src, offset, first);
+        if (first < len)
+            ring.put(0, src, offset + first, len - first);
+    }
+
+    private void get(long pos, ByteBuffer dst, int len) {
+        int idx = index(pos);
+        int first = Math.min(len, capacity - idx);
+        dst.put(0, ring, idx, first);
+        if (first < len)
+            dst.put(first, ring, 0, len - first);
+    }
+
+    private void putInt(long pos, int value) {
+        int idx = index(pos);
+        if (idx + HEADER <= capacity) {
+            ring.putInt(idx, value);
+            return;
+        }
+        for (int i = 0; i < HEADER; i++)
+            ring.put(index(pos + i), (byte) (value >>> (24 - 8 * i)));
+    }
+
+    private int getInt(long pos) {
+        int idx = index(pos);
+        if (idx + HEADER <= capacity)
+            return ring.getInt(idx);
+        int value = 0;
+        for (int i = 0; i < HEADER; i++)
+            value = (value << 8) | (ring.get(index(pos + i)) & 0xff);
+        return value;
+    }
+}
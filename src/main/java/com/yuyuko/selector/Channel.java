@@ -1,19 +1,44 @@
 package com.yuyuko.selector;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public class Channel<T> implements Comparable<Channel<T>> {
+public class Channel<T> implements Comparable<Channel<T>>, Iterable<T> {
 
     protected static class Node<T> {
         private final Thread thread;
 
+        /**
+         * 是否是{@link AsyncNode}，不能用thread是否为null判断，Selector不阻塞时携带数据的节点也没有线程
+         */
+        private final boolean async;
+
         private volatile T data;
 
+        /**
+         * 原始类型channel的数据，int和double也编码成long放在这里，见{@link PrimitiveChannel}
+         * 总是在唤醒或发布之前写入，由finished或缓冲区的序号保证可见性
+         */
+        private long bits;
+
         /**
          * 若有select不为null，则是selected完成的标志
          */
@@ -24,8 +49,32 @@ public class Channel<T> implements Comparable<Channel<T>> {
          */
         private volatile boolean finished;
 
+        /**
+         * 节点已被选中却没能完成交换，需要重新操作，见{@link Channel#giveBack}
+         */
+        private volatile boolean retry;
+
+        /**
+         * 别的线程替这个写者把数据放进缓冲区时序列化失败，在唤醒之前写入，由写者取出抛出
+         */
+        private RuntimeException failure;
+
+        /**
+         * 所在的等待队列及前后节点，由{@link WaitQueue}维护，需持有channel的锁
+         */
+        WaitQueue<T> queue;
+
+        Node<T> prev;
+
+        Node<T> next;
+
         Node(Thread thread) {
+            this(thread, false);
+        }
+
+        private Node(Thread thread, boolean async) {
             this.thread = thread;
+            this.async = async;
         }
 
         void setSelected(AtomicReference<Node<T>> selected) {
@@ -44,6 +93,22 @@ public class Channel<T> implements Comparable<Channel<T>> {
             this.data = data;
         }
 
+        long getBits() {
+            return bits;
+        }
+
+        void setBits(long bits) {
+            this.bits = bits;
+        }
+
+        /**
+         * 把另一个节点的数据搬过来，读写双方直接交接时用
+         */
+        void copyFrom(Node<T> other) {
+            data = other.data;
+            bits = other.bits;
+        }
+
         AtomicReference<Node<T>> getSelected() {
             return selected;
         }
@@ -55,67 +120,474 @@ public class Channel<T> implements Comparable<Channel<T>> {
         boolean isFinished() {
             return finished;
         }
+
+        void setRetry(boolean retry) {
+            this.retry = retry;
+        }
+
+        boolean isRetry() {
+            return retry;
+        }
+
+        void fail(RuntimeException failure) {
+            this.failure = failure;
+        }
+
+        /**
+         * 取出并清除失败，写完之后由写的一方调用
+         */
+        RuntimeException takeFailure() {
+            RuntimeException failure = this.failure;
+            this.failure = null;
+            return failure;
+        }
+
+        /**
+         * 对方完成之后调用，置完成标志再唤醒等待的线程
+         */
+        void wake() {
+            finished = true;
+            LockSupport.unpark(thread);
+        }
+
+        /**
+         * 通道关闭时在{@link #wake()}之前调用，阻塞的线程用打断状态得知通道已关闭
+         */
+        void interrupt() {
+            thread.interrupt();
+        }
+
+        /**
+         * 被唤醒之后由等待的一方调用
+         *
+         * @return 是否因为通道关闭被唤醒，同时清除这个状态
+         */
+        boolean interrupted() {
+            return Thread.interrupted();
+        }
+
+        /**
+         * @return 是否是{@link AsyncNode}，没有线程在等它
+         */
+        boolean isAsync() {
+            return async;
+        }
     }
 
     /**
-     * 队列元素个数
+     * 异步读写和select用的节点，没有线程在等待，被唤醒时在executor里执行回调，
+     * 回调不会在持有channel的锁时执行。每次异步操作一个新节点，用完即弃
      */
-    private AtomicInteger count;
+    static final class AsyncNode<T> extends Node<T> {
+        private final Executor executor;
+
+        private Runnable callback;
+
+        private volatile boolean closed;
+
+        AsyncNode(Executor executor) {
+            super(null, true);
+            this.executor = executor;
+        }
+
+        void setCallback(Runnable callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        void wake() {
+            setFinished(true);
+            try {
+                executor.execute(callback);
+            } catch (RejectedExecutionException e) {
+                //executor已经关了，数据已经交接不能丢，换到虚拟线程里执行，不在持有锁时执行用户的回调
+                Channels.executor().execute(callback);
+            }
+        }
+
+        @Override
+        void interrupt() {
+            closed = true;
+        }
+
+        @Override
+        boolean interrupted() {
+            boolean interrupted = closed;
+            closed = false;
+            return interrupted;
+        }
+    }
 
     /**
-     * 缓冲区大小
+     * {@link #readInternal}的结果：读到了数据，数据在传入的节点里
      */
-    private final int bufferSize;
+    static final int OK = 0;
+
+    /**
+     * select模式下没有可读的数据或者超时
+     */
+    static final int NOT_READY = 1;
+
+    /**
+     * 通道已关闭且缓冲区已取完，与读到null区别开来
+     */
+    static final int CLOSED = 2;
 
     /**
-     * 发送idx
+     * {@link AsyncNode}已经入队，由对方完成之后回调
      */
-    private int sendIdx;
+    static final int PENDING = 3;
 
     /**
-     * 接收idx
+     * 遍历时一次批量取出的最大个数
      */
-    private int recvIdx;
+    private static final int PREFETCH = 64;
 
-    private final T[] queue;
+    /**
+     * 并行流一次拆出去的最大个数
+     */
+    private static final int MAX_SPLIT = 1 << 14;
+
+    /**
+     * 每个线程同一时间最多阻塞在一个读写上，阻塞用的节点按线程复用，
+     * 节点被唤醒时已经出队，不会再被别的线程碰到。select的节点由Selector自己复用
+     * <p>
+     * 不阻塞时它也用来携带要写入或读出的数据
+     */
+    private static final ThreadLocal<Node<?>> LOCAL_NODE =
+            ThreadLocal.withInitial(() -> new Node<>(Thread.currentThread()));
+
+    /**
+     * 分配{@link #id}，从0开始递增
+     */
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    /**
+     * 全局唯一，决定加锁顺序，不像hashCode会重复
+     */
+    private final long id = NEXT_ID.getAndIncrement();
+
+    /**
+     * 缓冲区大小
+     */
+    private final int bufferSize;
+
+    /**
+     * 缓冲区，无缓冲的channel为null
+     * 读写缓冲区不需要加锁，只有要park或者动到等待队列时才加锁
+     */
+    private final Buffer<T> buffer;
 
     /**
      * chan是否关闭
      */
     private volatile boolean closed;
 
+    /**
+     * 正在不加锁地写缓冲区的线程数，先加一再检查closed。
+     * close置closed之后等它归零，之后写进缓冲区的数据都会被读到，close之后也不会再有写成功的
+     */
+    private final AtomicInteger sending = new AtomicInteger();
+
     /**
      * 等待发送到chan的线程
      */
-    private final Queue<Node<T>> writeQueue;
+    private final WaitQueue<T> writeQueue;
 
     /**
      * 等待从chan接收的线程
      */
-    private final Queue<Node<T>> readQueue;
+    private final WaitQueue<T> readQueue;
+
+    /**
+     * 等待队列的长度，在锁内更新，在锁外读
+     * 无锁写入缓冲区之后据此判断要不要加锁唤醒读者，读也一样
+     */
+    private volatile int waitingWriters;
+
+    private volatile int waitingReaders;
 
     private final ReentrantLock lock;
 
+    /**
+     * 等待对方时的空转策略
+     */
+    private final WaitStrategy waitStrategy;
+
+    /**
+     * 统计，没有开启时为null，每处只多一次判断
+     */
+    private final ChannelMetrics metrics;
+
     public Channel() {
         this(0);
     }
 
     public Channel(int bufferSize) {
-        this.bufferSize = bufferSize;
-        count = new AtomicInteger(0);
-        queue = (T[]) new Object[bufferSize];
-        writeQueue = (new LinkedList<>());
-        readQueue = new LinkedList<>();
-        lock = new ReentrantLock(true);
+        this(new Builder<T>().bufferSize(bufferSize));
+    }
+
+    protected Channel(Builder<?> builder) {
+        this(builder, builder.bufferFactory(false));
+    }
+
+    /**
+     * @param bufferFactory 按bufferSize创建缓冲区，bufferSize为0时不会调用
+     */
+    Channel(Builder<?> builder, IntFunction<Buffer<T>> bufferFactory) {
+        this.bufferSize = builder.bufferSize;
+        buffer = bufferSize > 0 ? bufferFactory.apply(bufferSize) : null;
+        writeQueue = new WaitQueue<>();
+        readQueue = new WaitQueue<>();
+        lock = new ReentrantLock(builder.fair);
+        waitStrategy = builder.waitStrategy;
+        metrics = builder.metrics ? new ChannelMetrics() : null;
+    }
+
+    /**
+     * 把要发送的数据放进节点
+     */
+    void encode(Node<T> node, T data) {
+        node.setData(data);
+    }
+
+    /**
+     * 取出节点里读到的数据
+     */
+    T decode(Node<T> node) {
+        return node.getData();
+    }
+
+    /**
+     * select用，把key要发送的数据放进节点
+     */
+    void encode(Node<T> node, SelectionKey<T> key) {
+        node.setData(key.data());
+    }
+
+    /**
+     * select用，把节点里读到的数据放进key
+     */
+    void decode(Node<T> node, SelectionKey<T> key) {
+        key.setData(node.getData());
+    }
+
+    /**
+     * 读写双方直接交接，把写者节点的数据搬到读者节点里。
+     * 返回之后写者可能马上被唤醒，数据不能再引用写者的东西
+     */
+    void transfer(Node<T> from, Node<T> to) {
+        to.copyFrom(from);
+    }
+
+    /**
+     * 读之前准备好节点，数据可能由别的线程直接放进来
+     */
+    void prepareRead(Node<T> node) {
+    }
+
+    /**
+     * @return 原始类型的channel返回对应的原始类型，见{@link SelectionKey#readInt()}等
+     */
+    Class<?> primitiveType() {
+        return null;
+    }
+
+    /**
+     * 注册到Selector时检查key，select时不再检查：select在锁外检查就绪，
+     * 之后一次只持有一个channel的锁，逐个入队，中途抛异常会把节点留在已经入队的channel里
+     *
+     * @throws IllegalArgumentException key不能用在这个channel上
+     */
+    void checkKey(SelectionKey<T> key) {
+        if (key.primitiveType() != null && key.primitiveType() != primitiveType())
+            throw new IllegalArgumentException("key of " + key.primitiveType() +
+                    " can not be registered to " + getClass().getSimpleName());
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    Buffer<T> buffer() {
+        return buffer;
+    }
+
+    public static <T> Builder<T> builder() {
+        return new Builder<>();
+    }
+
+    public static class Builder<T> {
+        private int bufferSize;
+
+        private boolean fair = true;
+
+        private boolean elastic;
+
+        private boolean spsc;
+
+        private boolean metrics;
+
+        private WaitStrategy waitStrategy = WaitStrategy.park();
+
+        protected Builder() {
+        }
+
+        /**
+         * 缓冲区大小，默认为0，即无缓冲
+         */
+        public Builder<T> bufferSize(int bufferSize) {
+            if (bufferSize < 0)
+                throw new IllegalArgumentException("bufferSize must not be negative");
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        /**
+         * 子类在构造器里用它，不用调用channel自己可被覆盖的方法
+         */
+        int bufferSize() {
+            return bufferSize;
+        }
+
+        /**
+         * 缓冲区按需分配，bufferSize只是上限，用完之后还回去，默认为false，即按bufferSize预先分配。
+         * 适合大量平时空闲、偶尔突发的channel，代价是缓冲区的读写要加一把小锁。
+         * 只对{@link Channel}和{@link IntChannel}等原始类型的channel有效
+         */
+        public Builder<T> elastic(boolean elastic) {
+            this.elastic = elastic;
+            return this;
+        }
+
+        /**
+         * 不限大小的缓冲区，写永远不会阻塞，相当于bufferSize为{@link Integer#MAX_VALUE}并且{@link #elastic}
+         */
+        public Builder<T> unbounded() {
+            bufferSize = Integer.MAX_VALUE;
+            elastic = true;
+            return this;
+        }
+
+        /**
+         * 声明同一时间只有一个写者和一个读者，缓冲区换成没有CAS的单生产者单消费者队列，默认为false。
+         * 一条channel只连两个线程的流水线适合用它，仍然可以用在select里，
+         * 但select也算读者或写者。与{@link #elastic}同时设置时以elastic为准
+         */
+        public Builder<T> spsc(boolean spsc) {
+            this.spsc = spsc;
+            return this;
+        }
+
+        /**
+         * 是否统计读写次数、park的次数和时间、锁竞争，见{@link Channel#stats()}，默认为false。
+         * 计数用{@link java.util.concurrent.atomic.LongAdder}，不开启时几乎没有开销
+         */
+        public Builder<T> metrics(boolean metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * @param primitive 缓冲区存原始类型还是引用，见{@link PrimitiveChannel}
+         */
+        <E> IntFunction<Buffer<E>> bufferFactory(boolean primitive) {
+            if (elastic)
+                return size -> new ChunkedBuffer<>(size, primitive);
+            if (spsc)
+                return size -> new SpscRingBuffer<>(size, primitive);
+            return primitive ? LongRingBuffer::new : ObjectRingBuffer::new;
+        }
+
+        /**
+         * 是否使用公平锁，默认为true。非公平锁的吞吐要高得多，但等待的线程可能被插队
+         */
+        public Builder<T> fair(boolean fair) {
+            this.fair = fair;
+            return this;
+        }
+
+        /**
+         * 等待对方时的空转策略，默认为{@link WaitStrategy#park()}
+         */
+        public Builder<T> waitStrategy(WaitStrategy waitStrategy) {
+            this.waitStrategy = Objects.requireNonNull(waitStrategy);
+            return this;
+        }
+
+        public Channel<T> build() {
+            return new Channel<>(this);
+        }
     }
 
     public void write(T data) {
         writeInternal(data, false);
     }
 
+    /**
+     * 最多等待timeout，超时之后数据不会被发送
+     *
+     * @throws TimeoutException 超时
+     */
+    public void write(T data, long timeout, TimeUnit unit) throws TimeoutException {
+        Node<T> node = localNode();
+        encode(node, data);
+        boolean sent;
+        try {
+            sent = writeInternal(node, false, true, unit.toNanos(timeout));
+        } finally {
+            node.setData(null);
+        }
+        if (!sent)
+            throw new TimeoutException("send timed out");
+    }
+
     protected boolean writeInternal(T data, boolean select) {
+        Node<T> node = localNode();
+        encode(node, data);
+        try {
+            return writeInternal(node, select, false, 0L);
+        } finally {
+            node.setData(null);
+        }
+    }
+
+    /**
+     * 发送节点里的数据，非select模式下节点必须是当前线程的{@link #localNode()}，阻塞时直接拿它去排队
+     *
+     * @param timed 是否限时
+     * @param nanos 限时的时长
+     * @return 是否发送成功，select模式下没有可以发送的对象或者超时返回false，{@link AsyncNode}入队之后也返回false
+     */
+    boolean writeInternal(Node<T> src, boolean select, boolean timed, long nanos) {
+        boolean sent = send(src, select, timed, nanos);
+        RuntimeException failure = src.takeFailure();
+        if (failure != null)
+            throw failure;
+        return sent;
+    }
+
+    private boolean send(Node<T> src, boolean select, boolean timed, long nanos) {
+        //缓冲区有空间，不加锁直接写入
+        if (buffer != null) {
+            boolean offered;
+            sending.getAndIncrement();
+            try {
+                if (closed)
+                    throw new ChannelAlreadyClosedException("send to closed channel");
+                offered = offer(src);
+            } finally {
+                sending.getAndDecrement();
+            }
+            if (offered) {
+                if (waitingReaders > 0)
+                    wakeUpReaders();
+                return true;
+            }
+        }
+
         //加锁
-        lock.lock();
+        lock();
 
         //通道已关闭
         if (closed) {
@@ -123,23 +595,21 @@ public class Channel<T> implements Comparable<Channel<T>> {
             throw new ChannelAlreadyClosedException("send to closed channel");
         }
 
+        //缓冲区里还有数据时等待的读者要先拿它们，见transferToReaders
+        transferToReaders();
+
         //有线程等待接收
         //直接发送，绕过缓冲区
         Node<T> dequeue = dequeue(readQueue);
         if (dequeue != null) {
             lock.unlock();
-            dequeue.setData(data);
+            handOff(src, dequeue);
             wakeUpNode(dequeue);
             return true;
         }
 
-
         //缓冲区有空间
-        if (hasAvailableBufferSpace()) {
-            queue[sendIdx++] = data;
-            if (sendIdx == bufferSize)
-                sendIdx = 0;
-            count.incrementAndGet();
+        if (buffer != null && offer(src)) {
             lock.unlock();
             return true;
         }
@@ -150,85 +620,684 @@ public class Channel<T> implements Comparable<Channel<T>> {
             return false;
         }
 
-        Thread current = Thread.currentThread();
+        Node<T> node = src;
 
-        Node<T> node = new Node<>(current);
+        node.setFinished(false);
 
-        node.setData(data);
+        enqueue(writeQueue, node);
 
-        writeQueue.add(node);
+        //入队之后再试一次，入队前读者可能刚好取走了元素，但没有看到这个节点
+        if (buffer != null && offer(node)) {
+            writeQueue.remove(node);
+            waitersChanged();
+            lock.unlock();
+            return true;
+        }
 
         lock.unlock();
 
+        //异步的节点不等待，由接收者回调
+        if (node.isAsync())
+            return false;
+
         //等待接收者取数据
-        //此处一定要用while，折腾了一天得出的结论
-        while (!node.isFinished()) {
-            LockSupport.park(current);
-        }
+        if (!await(node, timed, nanos) && cancel(writeQueue, node))
+            return false;
         //通道关闭
-        if (Thread.interrupted())
+        if (node.interrupted())
             throw new ChannelAlreadyClosedException("send to closed channel");
 
         return true;
     }
 
     public T read() {
-        return ((T) readInternal(false)[0]);
+        Node<T> node = localNode();
+        return readInternal(node, false, false, 0L) == OK ? take(node) : null;
     }
 
     /**
-     * 两个元素的数组，第一个元素是返回值，第二个元素是是否select成功
+     * 最多等待timeout
      *
-     * @return
+     * @return 读到的数据，通道已关闭返回null
+     * @throws TimeoutException 超时
      */
-    Object[] readInternal(boolean select) {
-        lock.lock();
+    public T read(long timeout, TimeUnit unit) throws TimeoutException {
+        Node<T> node = localNode();
+        int state = readInternal(node, false, true, unit.toNanos(timeout));
+        if (state == NOT_READY)
+            throw new TimeoutException("receive timed out");
+        return state == OK ? take(node) : null;
+    }
+
+    /**
+     * 阻塞地接收，与{@link #read()}不同，用{@link ReadResult}把读到null和通道已关闭区分开，
+     * 数据经过{@link #detach}，可以留着以后再用
+     *
+     * @param timed 是否限时，超时返回{@link ReadResult#empty()}
+     */
+    ReadResult<T> receive(boolean timed, long nanos) {
+        Node<T> node = localNode();
+        int state = readInternal(node, false, timed, nanos);
+        if (state == NOT_READY)
+            return ReadResult.empty();
+        if (state == CLOSED)
+            return ReadResult.closed();
+        return ReadResult.of(detach(take(node)));
+    }
 
-        //通道已关闭，返回null
-        if (closed && count.get() == 0) {
+    /**
+     * 不阻塞地发送
+     *
+     * @return 有等待的读者或者缓冲区有空间，发送成功返回true，否则返回false
+     * @throws ChannelAlreadyClosedException 通道已关闭
+     */
+    public boolean tryWrite(T data) {
+        return writeInternal(data, true);
+    }
+
+    /**
+     * 不阻塞地接收
+     *
+     * @return 读到的数据；没有可读的数据时为{@link ReadResult#empty()}，
+     * 通道已关闭且缓冲区已取完时为{@link ReadResult#closed()}
+     */
+    public ReadResult<T> tryRead() {
+        Node<T> node = localNode();
+        int state = readInternal(node, true, false, 0L);
+        if (state == NOT_READY)
+            return ReadResult.empty();
+        if (state == CLOSED)
+            return ReadResult.closed();
+        return ReadResult.of(take(node));
+    }
+
+    /**
+     * 异步接收，不阻塞也不占用线程：能马上读到时返回已完成的future，
+     * 否则在读队列里放一个回调节点，写者交接数据之后在{@link Channels#executor()}里完成future
+     * <p>
+     * 与{@link #read()}返回null不同，通道已关闭且缓冲区已取完时future以{@link ChannelAlreadyClosedException}异常完成，
+     * 以便和读到null区分开。取消future或者{@link CompletableFuture#orTimeout}超时会把节点移出队列，
+     * 但如果写者已经把数据交给了这个节点，这个数据就丢了
+     */
+    public CompletableFuture<T> readAsync() {
+        return readAsync(Channels.executor());
+    }
+
+    /**
+     * @param executor 完成future的地方，future的回调也在这里执行
+     */
+    public CompletableFuture<T> readAsync(Executor executor) {
+        Objects.requireNonNull(executor);
+        CompletableFuture<T> future = new CompletableFuture<>();
+        AsyncNode<T> node = new AsyncNode<>(executor);
+        node.setCallback(() -> completeRead(future, node, node.interrupted() ? CLOSED : OK));
+        int state = readInternal(node, false, false, 0L);
+        if (state == PENDING)
+            future.whenComplete((data, ex) -> removeAsync(node, ex));
+        else
+            completeRead(future, node, state);
+        return future;
+    }
+
+    private void completeRead(CompletableFuture<T> future, Node<T> node, int state) {
+        if (state == CLOSED)
+            future.completeExceptionally(new ChannelAlreadyClosedException("receive from closed channel"));
+        else
+            future.complete(decode(node));
+    }
+
+    /**
+     * 异步发送，不阻塞也不占用线程：能马上发送时返回已完成的future，
+     * 否则在写队列里放一个回调节点，读者取走数据之后在{@link Channels#executor()}里完成future
+     * <p>
+     * 通道已关闭时future以{@link ChannelAlreadyClosedException}异常完成。取消future会把节点移出队列，
+     * 已经被取走的数据不受影响
+     */
+    public CompletableFuture<Void> writeAsync(T data) {
+        return writeAsync(data, Channels.executor());
+    }
+
+    public CompletableFuture<Void> writeAsync(T data, Executor executor) {
+        Objects.requireNonNull(executor);
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        AsyncNode<T> node = new AsyncNode<>(executor);
+        node.setCallback(() -> {
+            node.setData(null);
+            RuntimeException failure = node.takeFailure();
+            if (node.interrupted())
+                future.completeExceptionally(new ChannelAlreadyClosedException("send to closed channel"));
+            else if (failure != null)
+                future.completeExceptionally(failure);
+            else
+                future.complete(null);
+        });
+        encode(node, data);
+        try {
+            if (writeInternal(node, false, false, 0L)) {
+                node.setData(null);
+                future.complete(null);
+            } else
+                future.whenComplete((v, ex) -> removeAsync(node, ex));
+        } catch (RuntimeException e) {
+            node.setData(null);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 异步的future被取消或者超时，节点还在队列里就摘掉
+     */
+    private void removeAsync(Node<T> node, Throwable ex) {
+        if (ex == null || node.isFinished())
+            return;
+        lock();
+        try {
+            removeWaiter(node);
+        } finally {
             lock.unlock();
-            return new Object[]{null, true};
         }
+    }
 
-        Node<T> dequeue = dequeue(writeQueue);
-        if (dequeue != null) {
+    /**
+     * 不阻塞地取出最多maxElements个数据放进c，先取缓冲区，再取等待中的写者，
+     * 整个过程只加一次锁，取完之后再用等待的写者补满缓冲区
+     *
+     * @return 取出的个数
+     */
+    public int drainTo(Collection<? super T> c, int maxElements) {
+        Objects.requireNonNull(c);
+        int n = 0;
+        Node<T> node = localNode();
+        //缓冲区不用加锁
+        if (buffer != null) {
+            while (n < maxElements && poll(node)) {
+                c.add(take(node));
+                n++;
+            }
+        }
+        if (waitingWriters == 0)
+            return n;
+
+        lock();
+        try {
+            while (n < maxElements) {
+                if (buffer != null && poll(node)) {
+                    c.add(take(node));
+                    n++;
+                    continue;
+                }
+                Node<T> dequeue = dequeue(writeQueue);
+                if (dequeue == null)
+                    break;
+                T data = decode(dequeue);
+                wakeUpNode(dequeue);
+                if (metrics != null) {
+                    metrics.written.increment();
+                    metrics.read.increment();
+                }
+                c.add(data);
+                n++;
+            }
+            transferFromWriters();
+        } finally {
             lock.unlock();
-            wakeUpNode(dequeue);
-            return new Object[]{dequeue.getData(), true};
+        }
+        return n;
+    }
+
+    /**
+     * 按顺序发送c中的所有数据，一次加锁把数据交给所有等待的读者并填满缓冲区，
+     * 剩下的再逐个阻塞发送
+     *
+     * @throws ChannelAlreadyClosedException 通道已关闭，此前的数据已经发送出去
+     */
+    public void writeAll(Collection<? extends T> c) {
+        Iterator<? extends T> iterator = c.iterator();
+        if (!iterator.hasNext())
+            return;
+        T data = iterator.next();
+        boolean pending = true;
+
+        Node<T> node = localNode();
+        lock();
+        try {
+            if (closed)
+                throw new ChannelAlreadyClosedException("send to closed channel");
+
+            //和send一样，缓冲区里已有的数据先交给等待的读者
+            transferToReaders();
+
+            Node<T> dequeue;
+            while (pending && (dequeue = dequeue(readQueue)) != null) {
+                encode(node, data);
+                handOff(node, dequeue);
+                wakeUpNode(dequeue);
+                if (pending = iterator.hasNext())
+                    data = iterator.next();
+            }
+
+            while (pending && buffer != null) {
+                encode(node, data);
+                if (!offer(node))
+                    break;
+                RuntimeException failure = node.takeFailure();
+                if (failure != null)
+                    throw failure;
+                if (pending = iterator.hasNext())
+                    data = iterator.next();
+            }
+        } finally {
+            node.setData(null);
+            lock.unlock();
+        }
+
+        while (pending) {
+            write(data);
+            if (pending = iterator.hasNext())
+                data = iterator.next();
+        }
+    }
+
+    /**
+     * 依次读出数据，直到通道关闭且缓冲区已取完，数据可以是null。
+     * 和其他读者竞争同一份数据，每个数据只会被其中一个读到；hasNext在没有数据时阻塞
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return Spliterators.iterator(spliterator());
+    }
+
+    /**
+     * 一次最多批量取出{@value #PREFETCH}个数据再逐个交给action
+     */
+    @Override
+    public void forEach(Consumer<? super T> action) {
+        spliterator().forEachRemaining(action);
+    }
+
+    /**
+     * forEachRemaining和trySplit用{@link #drainTo}批量预取，tryAdvance每次只取一个，
+     * 所以findFirst、limit等提前结束的操作不会多拿数据；但并行流拆出去的批次如果没有被消费完，其中的数据就丢了
+     */
+    @Override
+    public Spliterator<T> spliterator() {
+        return new ChannelSpliterator();
+    }
+
+    /**
+     * 以通道为源的顺序流，通道关闭且缓冲区已取完时结束，见{@link #spliterator()}
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * 读出的数据交出去之前的处理，读出的数据会被下一次读覆盖的通道在这里拷贝一份
+     */
+    T detach(T data) {
+        return data;
+    }
+
+    private final class ChannelSpliterator implements Spliterator<T> {
+        private final ArrayList<T> batch = new ArrayList<>();
+
+        private int index;
+
+        private boolean closed;
+
+        /**
+         * 下一次trySplit拆出去的最大个数，每拆一次翻倍
+         */
+        private int splitSize = PREFETCH;
+
+        /**
+         * 当前批次取完了就再取最多max个，一个都没有时阻塞读一个
+         *
+         * @return 通道已关闭且缓冲区已取完返回false
+         */
+        private boolean fill(int max) {
+            if (index < batch.size())
+                return true;
+            if (closed)
+                return false;
+            batch.clear();
+            index = 0;
+            if (drainTo(batch, max) > 0)
+                return true;
+            ReadResult<T> result = receive(false, 0L);
+            if (result.isClosed()) {
+                closed = true;
+                return false;
+            }
+            batch.add(result.get());
+            return true;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            Objects.requireNonNull(action);
+            if (!fill(1))
+                return false;
+            action.accept(batch.get(index++));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            Objects.requireNonNull(action);
+            while (fill(PREFETCH)) {
+                while (index < batch.size())
+                    action.accept(batch.get(index++));
+            }
+        }
+
+        /**
+         * 把已经取到的数据连同缓冲区里现有的拆出去，至少等到一个数据
+         */
+        @Override
+        @SuppressWarnings("unchecked")
+        public Spliterator<T> trySplit() {
+            if (!fill(splitSize))
+                return null;
+            if (index > 0) {
+                batch.subList(0, index).clear();
+                index = 0;
+            }
+            if (batch.size() < splitSize)
+                drainTo(batch, splitSize - batch.size());
+            Object[] prefix = batch.toArray();
+            batch.clear();
+            splitSize = Math.min(splitSize << 1, MAX_SPLIT);
+            return (Spliterator<T>) Spliterators.spliterator(prefix, Spliterator.ORDERED);
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.CONCURRENT;
+        }
+    }
+
+    /**
+     * 写入缓冲区，所有写缓冲区的地方都经过这里，方便统计
+     */
+    private boolean offer(Node<T> from) {
+        try {
+            if (!buffer.offer(from))
+                return false;
+        } catch (RuntimeException e) {
+            //序列化失败，数据没有进缓冲区，缓冲区也没有变。当作这个写者已经完成，
+            //唤醒之后由它自己抛出，锁内的流程照常走完，见Node#takeFailure
+            from.fail(e);
+            return true;
+        }
+        if (metrics != null)
+            metrics.written.increment();
+        return true;
+    }
+
+    private boolean poll(Node<T> to) {
+        if (!buffer.poll(to))
+            return false;
+        if (metrics != null)
+            metrics.read.increment();
+        return true;
+    }
+
+    /**
+     * 读写双方直接交接
+     */
+    private void handOff(Node<T> from, Node<T> to) {
+        transfer(from, to);
+        if (metrics != null) {
+            metrics.written.increment();
+            metrics.read.increment();
+        }
+    }
+
+    /**
+     * 取出节点里读到的数据并清掉引用
+     */
+    private T take(Node<T> node) {
+        T data = decode(node);
+        node.setData(null);
+        return data;
+    }
+
+    /**
+     * 读到的数据放在dst里，非select模式下dst必须是当前线程的{@link #localNode()}，阻塞时直接拿它去排队
+     *
+     * @param timed 是否限时
+     * @param nanos 限时的时长
+     * @return {@link #OK}，通道已关闭返回{@link #CLOSED}，select模式下没有可读的数据或者超时返回{@link #NOT_READY}，
+     * {@link AsyncNode}入队之后返回{@link #PENDING}
+     */
+    int readInternal(Node<T> dst, boolean select, boolean timed, long nanos) {
+        prepareRead(dst);
+
+        //缓冲区有数据，不加锁直接取
+        if (buffer != null && poll(dst)) {
+            if (waitingWriters > 0)
+                wakeUpWriters();
+            return OK;
+        }
+
+        lock();
+
+        //通道已关闭，缓冲区取完之后返回null
+        if (closed) {
+            boolean polled = buffer != null && poll(dst);
+            lock.unlock();
+            return polled ? OK : CLOSED;
+        }
+
+        //加锁之前写者可能已经写满了缓冲区又排了队，要先取缓冲区里的，否则顺序就乱了
+        if (buffer != null && poll(dst)) {
+            transferFromWriters();
+            lock.unlock();
+            return OK;
         }
 
-        //缓冲区有数据可以拿
-        if (hasDataInBuffer()) {
-            T res = queue[recvIdx];
-            queue[recvIdx++] = null;
-            if (recvIdx == bufferSize)
-                recvIdx = 0;
-            count.decrementAndGet();
+        Node<T> dequeue = dequeue(writeQueue);
+        if (dequeue != null) {
             lock.unlock();
-            return new Object[]{res, true};
+            handOff(dequeue, dst);
+            wakeUpNode(dequeue);
+            return OK;
         }
 
         if (select) {
             lock.unlock();
-            return new Object[]{null, false};
+            return NOT_READY;
         }
 
-        Thread current = Thread.currentThread();
-        Node<T> node = new Node<>(current);
+        Node<T> node = dst;
+
+        node.setFinished(false);
 
-        readQueue.add(node);
+        enqueue(readQueue, node);
+
+        //入队之后再试一次，入队前写者可能刚好写入了缓冲区，但没有看到这个节点
+        if (buffer != null && poll(node)) {
+            readQueue.remove(node);
+            waitersChanged();
+            transferFromWriters();
+            lock.unlock();
+            return OK;
+        }
 
         lock.unlock();
 
+        if (node.isAsync())
+            return PENDING;
+
         //等待发送者发数据
-        while (!node.isFinished()) {
-            LockSupport.park(current);
-        }
+        if (!await(node, timed, nanos) && cancel(readQueue, node))
+            return NOT_READY;
         //通道关闭，返回null
-        if (Thread.interrupted())
-            return new Object[]{null, true};
+        if (node.interrupted()) {
+            node.setData(null);
+            return CLOSED;
+        }
+
+        return OK;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> Node<T> localNode() {
+        return (Node<T>) LOCAL_NODE.get();
+    }
+
+    /**
+     * 等待节点完成
+     * 此处一定要用while，折腾了一天得出的结论
+     *
+     * @return 超时返回false
+     */
+    private boolean await(Node<?> node, boolean timed, long nanos) {
+        if (metrics == null)
+            return await(node, timed, nanos, waitStrategy);
+        long start = System.nanoTime();
+        try {
+            return await(node, timed, nanos, waitStrategy);
+        } finally {
+            metrics.parks.increment();
+            metrics.parkedNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    private static boolean await(Node<?> node, boolean timed, long nanos, WaitStrategy waitStrategy) {
+        Thread thread = node.getThread();
+        long deadline = timed ? System.nanoTime() + nanos : 0L;
+        for (int counter = 0; !node.isFinished(); counter = nextCounter(counter)) {
+            if (!timed)
+                waitStrategy.idle(thread, counter, Long.MAX_VALUE);
+            else {
+                nanos = deadline - System.nanoTime();
+                if (nanos <= 0L)
+                    return false;
+                waitStrategy.idle(thread, counter, nanos);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 空转计数加一，到上限之后不再增加
+     */
+    static int nextCounter(int counter) {
+        return counter == Integer.MAX_VALUE ? counter : counter + 1;
+    }
+
+    /**
+     * 超时之后把节点移出等待队列
+     *
+     * @return 节点还在队列里，取消成功返回true；已经被别的线程出队返回false，此时等它完成
+     */
+    private boolean cancel(WaitQueue<T> queue, Node<T> node) {
+        lock();
+        try {
+            if (queue.remove(node)) {
+                waitersChanged();
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        await(node, false, 0L);
+        return false;
+    }
+
+    /**
+     * 缓冲区被channel以外的人写入之后调用，有等待的读者就加锁把数据交给它们，不能持有这个channel的锁
+     */
+    void signalReaders() {
+        if (waitingReaders > 0)
+            wakeUpReaders();
+    }
+
+    private void wakeUpReaders() {
+        lock();
+        try {
+            transferToReaders();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void wakeUpWriters() {
+        lock();
+        try {
+            transferFromWriters();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把缓冲区里的数据交给等待的读者，需持有锁
+     */
+    void transferToReaders() {
+        while (buffer != null && !buffer.isEmpty() && !readQueue.isEmpty()) {
+            Node<T> node = dequeue(readQueue);
+            if (node == null)
+                return;
+            //被不加锁的读者抢先取走了
+            if (!poll(node)) {
+                giveBack(readQueue, node);
+                return;
+            }
+            wakeUpNode(node);
+        }
+    }
+
+    /**
+     * 把等待的写者的数据放进缓冲区，需持有锁。
+     * 队首的数据放不下就停下，先看再出队：select的节点一出队就被选中了，放不下只能让它重新select，
+     * 变长记录的缓冲区没满也可能放不下
+     */
+    void transferFromWriters() {
+        while (buffer != null && !writeQueue.isEmpty()) {
+            Node<T> node = writeQueue.peek();
+            AtomicReference<Node<T>> selected = node.getSelected();
+            //已经在别的channel上被选中了
+            if (selected != null && selected.get() != null) {
+                writeQueue.poll();
+                waitersChanged();
+                continue;
+            }
+            if (!buffer.canOffer(node))
+                return;
+            writeQueue.poll();
+            waitersChanged();
+            if (selected != null && !selected.compareAndSet(null, node))
+                continue;
+            //被不加锁的写者抢先写满了
+            if (!offer(node)) {
+                giveBack(writeQueue, node);
+                return;
+            }
+            wakeUpNode(node);
+        }
+    }
 
-        return new Object[]{node.getData(), true};
+    /**
+     * 已出队的节点没能完成，普通节点放回队首，
+     * select的节点已经被选中，无法撤销，只能让它重新select
+     */
+    private void giveBack(WaitQueue<T> queue, Node<T> node) {
+        if (node.getSelected() == null) {
+            queue.addFirst(node);
+            waitersChanged();
+        } else {
+            node.setRetry(true);
+            wakeUpNode(node);
+        }
     }
 
     /**
@@ -237,24 +1306,39 @@ public class Channel<T> implements Comparable<Channel<T>> {
      * @param node node
      */
     private void wakeUpNode(Node<T> node) {
-        Thread thread = node.getThread();
-        node.setFinished(true);
-        LockSupport.unpark(thread);
+        node.wake();
     }
 
-    public Node<T> dequeue(Queue<Node<T>> queue) {
-        while (!queue.isEmpty()) {
-            Node<T> node = queue.remove();
-            //有select在等待
-            if (node.getSelected() != null && !node.getSelected().compareAndSet(null, node))
-                continue;
-            return node;
+    Node<T> dequeue(WaitQueue<T> queue) {
+        try {
+            while (!queue.isEmpty()) {
+                Node<T> node = queue.poll();
+                //有select在等待
+                if (node.getSelected() != null && !node.getSelected().compareAndSet(null, node))
+                    continue;
+                return node;
+            }
+            return null;
+        } finally {
+            waitersChanged();
         }
-        return null;
+    }
+
+    private void enqueue(WaitQueue<T> queue, Node<T> node) {
+        queue.add(node);
+        waitersChanged();
+    }
+
+    /**
+     * 等待队列有变化，更新给无锁路径看的长度，需持有锁
+     */
+    private void waitersChanged() {
+        waitingWriters = writeQueue.size();
+        waitingReaders = readQueue.size();
     }
 
     public void close() {
-        lock.lock();
+        lock();
 
         if (closed) {
             lock.unlock();
@@ -263,6 +1347,13 @@ public class Channel<T> implements Comparable<Channel<T>> {
 
         closed = true;
 
+        //不加锁的写者要么已经看到closed，要么在写缓冲区，等它写完
+        while (sending.get() != 0)
+            Thread.onSpinWait();
+
+        //缓冲区里的数据先交给等待的读者，再打断剩下的
+        transferToReaders();
+
         //打断所有线程
         interruptOnClose(writeQueue);
 
@@ -271,44 +1362,142 @@ public class Channel<T> implements Comparable<Channel<T>> {
         lock.unlock();
     }
 
-    private void interruptOnClose(Queue<Node<T>> queue) {
+    private void interruptOnClose(WaitQueue<T> queue) {
         while (!queue.isEmpty()) {
             Node<T> dequeue = dequeue(queue);
             if (dequeue != null) {
-                dequeue.setFinished(true);
-                dequeue.getThread().interrupt();
+                //先打断再置完成标志，否则被唤醒的线程可能看不到打断状态
+                dequeue.interrupt();
+                dequeue.wake();
             }
         }
     }
 
-    Queue<Node<T>> getWriteQueue() {
-        return writeQueue;
+    /**
+     * select的第二阶段，只加这一个channel的锁。无锁检查之后情况可能已经变了，加锁后再看一次：
+     * 能直接完成就先用selected抢占，抢到了在锁内完成并置完成标志，抢不到说明已经在别的channel上被选中；
+     * 不能完成才入队，入队之后缓冲区可能刚好有了数据或空间，再交接一次
+     * <p>
+     * 通道已关闭时与被{@link #close()}打断的节点一样，先打断再唤醒
+     *
+     * @param write 节点是写还是读，写的数据已经编码在节点里
+     * @return 已经被选中，不需要再到别的channel上入队了
+     */
+    boolean enqueueSelect(Node<T> node, boolean write) {
+        AtomicReference<Node<T>> selected = node.getSelected();
+        lock();
+        try {
+            //已经被选中或者取消了就不再入队，在这之前入队的节点由select之后摘掉
+            if (selected.get() != null)
+                return true;
+
+            if (closed) {
+                if (!selected.compareAndSet(null, node))
+                    return true;
+                if (write || buffer == null || !poll(node))
+                    node.interrupt();
+                wakeUpNode(node);
+                return true;
+            }
+
+            //写者排队说明缓冲区满过，要先取缓冲区里的，保证顺序
+            if (!write && buffer != null && !buffer.isEmpty()) {
+                if (!selected.compareAndSet(null, node))
+                    return true;
+                if (poll(node))
+                    transferFromWriters();
+                else
+                    //被不加锁的读者抢先取走了，已经选中，只能重新select
+                    node.setRetry(true);
+                wakeUpNode(node);
+                return true;
+            }
+
+            WaitQueue<T> peers = write ? readQueue : writeQueue;
+            Node<T> peer = dequeuePeer(peers, selected);
+            if (peer != null) {
+                if (!selected.compareAndSet(null, node)) {
+                    giveBack(peers, peer);
+                    return true;
+                }
+                if (write)
+                    handOff(node, peer);
+                else
+                    handOff(peer, node);
+                wakeUpNode(peer);
+                wakeUpNode(node);
+                return true;
+            }
+
+            if (write) {
+                enqueue(writeQueue, node);
+                transferFromWriters();
+            } else {
+                enqueue(readQueue, node);
+                transferToReaders();
+            }
+            return selected.get() != null;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    Queue<Node<T>> getReadQueue() {
-        return readQueue;
+    /**
+     * 与{@link #dequeue}相同，但跳过同一个select的节点，select不能和自己交换，需持有锁
+     */
+    private Node<T> dequeuePeer(WaitQueue<T> queue, AtomicReference<Node<T>> own) {
+        try {
+            Node<T> node = queue.peek();
+            while (node != null) {
+                Node<T> next = node.next;
+                AtomicReference<Node<T>> selected = node.getSelected();
+                if (selected != own) {
+                    queue.remove(node);
+                    if (selected == null || selected.compareAndSet(null, node))
+                        return node;
+                }
+                node = next;
+            }
+            return null;
+        } finally {
+            waitersChanged();
+        }
+    }
+
+    /**
+     * 把select没有选中的节点移出等待队列，需持有锁
+     */
+    void removeWaiter(Node<T> node) {
+        if (writeQueue.remove(node) || readQueue.remove(node))
+            waitersChanged();
     }
 
+    /**
+     * 以下给select无锁检查用，读的是锁外可见的长度，只作参考，加锁之后还会再检查
+     */
     boolean hasWaitingWriter() {
-        return !writeQueue.isEmpty();
+        return waitingWriters > 0;
     }
 
     boolean hasWaitingReader() {
-        return !readQueue.isEmpty();
+        return waitingReaders > 0;
     }
 
     boolean hasDataInBuffer() {
-        return count.get() > 0;
-    }
-
-    boolean hasAvailableBufferSpace() {
-        return count.get() < bufferSize;
+        return buffer != null && !buffer.isEmpty();
     }
 
     /**
-     * 给select使用
+     * 缓冲区放得下key要写的数据，变长记录的channel要看记录的长度
      */
+    boolean hasAvailableBufferSpace(SelectionKey<T> key) {
+        return buffer != null && !buffer.isFull();
+    }
+
     void lock() {
+        //只是统计，不准确也没关系，不能用tryLock，它会绕过公平锁的排队
+        if (metrics != null && lock.isLocked())
+            metrics.contended.increment();
         lock.lock();
     }
 
@@ -320,8 +1509,23 @@ public class Channel<T> implements Comparable<Channel<T>> {
         return closed;
     }
 
+    /**
+     * 当前的统计，缓冲区和等待队列的长度总是有，其余的需要{@link Builder#metrics}开启
+     */
+    public ChannelStats stats() {
+        return new ChannelStats(metrics, buffer != null ? buffer.size() : 0,
+                waitingReaders, waitingWriters);
+    }
+
+    long id() {
+        return id;
+    }
+
+    /**
+     * 按{@link #id}排序，不同的channel一定不相等，是一个全序，多个channel按它加锁不会死锁
+     */
     @Override
     public int compareTo(Channel<T> o) {
-        return Integer.compare(this.hashCode(), o.hashCode());
+        return Long.compare(id, o.id);
     }
 }
@@ -1,6 +1,8 @@
 package com.yuyuko.selector;
 
 public class ChannelAlreadyClosedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
     public ChannelAlreadyClosedException(String message) {
         super(message);
     }
@@ -0,0 +1,22 @@
+package com.yuyuko.selector;
+
+/**
+ * 通过{@link Channels#registerMBean(String, Channel)}把{@link ChannelStats}暴露给JMX
+ */
+public interface ChannelMXBean {
+    long getWritten();
+
+    long getRead();
+
+    int getBuffered();
+
+    int getWaitingReaders();
+
+    int getWaitingWriters();
+
+    long getParks();
+
+    long getParkedNanos();
+
+    long getContended();
+}
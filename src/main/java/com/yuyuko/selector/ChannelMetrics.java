@@ -0,0 +1,30 @@
+package com.yuyuko.selector;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * channel的计数器，用{@link LongAdder}分散到多个cell上，热路径上的线程不会争同一个缓存行
+ */
+final class ChannelMetrics {
+    /**
+     * 进入缓冲区或者直接交给读者的个数
+     */
+    final LongAdder written = new LongAdder();
+
+    /**
+     * 从缓冲区取出或者直接从写者拿到的个数
+     */
+    final LongAdder read = new LongAdder();
+
+    /**
+     * 等待对方的次数和时间，包括空转
+     */
+    final LongAdder parks = new LongAdder();
+
+    final LongAdder parkedNanos = new LongAdder();
+
+    /**
+     * 加锁时锁已经被别的线程持有的次数
+     */
+    final LongAdder contended = new LongAdder();
+}
@@ -0,0 +1,203 @@
+package com.yuyuko.selector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 把channel当作{@link Flow.Publisher}，见{@link Channels#publisher(Channel, int, Executor)}
+ * <p>
+ * 每个订阅者按request(n)的需求用{@link Channel#drainTo}成批地读，一批只加一次锁；
+ * 读不到时用{@link Channel#readAsync(Executor)}等待，不占用线程。
+ * 多个订阅者竞争地读同一个channel，每个数据只给其中一个，需要广播用{@link BroadcastChannel}
+ * <p>
+ * Flow不允许null，读到null时以{@link NullPointerException}结束订阅。
+ * 所有发给订阅者的信号都在持有wip时发出，不会并发
+ */
+final class ChannelPublisher<T> implements Flow.Publisher<T> {
+    private final Channel<T> channel;
+
+    private final int batchSize;
+
+    private final Executor executor;
+
+    ChannelPublisher(Channel<T> channel, int batchSize, Executor executor) {
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("batchSize must be positive");
+        this.channel = Objects.requireNonNull(channel);
+        this.batchSize = batchSize;
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Objects.requireNonNull(subscriber);
+        subscriber.onSubscribe(new ChannelSubscription(subscriber));
+    }
+
+    private final class ChannelSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super T> subscriber;
+
+        /**
+         * 还没满足的需求，到Long.MAX_VALUE之后不再减少，相当于无限
+         */
+        private final AtomicLong demand = new AtomicLong();
+
+        /**
+         * 不为0时有一个drain在进行，其余的request只加计数，由它多转一圈
+         */
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private final List<T> batch = new ArrayList<>();
+
+        /**
+         * 正在等待的异步读，取消时一起取消
+         */
+        private volatile CompletableFuture<T> pendingRead;
+
+        private volatile boolean cancelled;
+
+        /**
+         * request的参数不合法，由持有wip的一方发出onError
+         */
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        /**
+         * 已经发出了onComplete或onError，只在持有wip时访问
+         */
+        private boolean done;
+
+        ChannelSubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (cancelled)
+                return;
+            if (n <= 0) {
+                error.compareAndSet(null, new IllegalArgumentException("request must be positive, got " + n));
+                //正在等待的读由它的回调发出错误
+                CompletableFuture<T> read = pendingRead;
+                if (read != null)
+                    read.cancel(false);
+            } else
+                demand.getAndAccumulate(n, (current, add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+            if (wip.getAndIncrement() == 0)
+                executor.execute(this::drain);
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            CompletableFuture<T> read = pendingRead;
+            if (read != null)
+                read.cancel(false);
+        }
+
+        /**
+         * 持有wip时才能进来，等待异步读时保留wip返回，读完之后从回调里再进来
+         */
+        private void drain() {
+            int missed = 1;
+            for (; ; ) {
+                if (errored())
+                    return;
+                long requested = demand.get();
+                while (requested > 0 && !cancelled) {
+                    if (errored())
+                        return;
+                    batch.clear();
+                    int n = channel.drainTo(batch, (int) Math.min(requested, batchSize));
+                    if (n == 0) {
+                        awaitNext();
+                        return;
+                    }
+                    for (T item : batch)
+                        if (!onNext(item))
+                            return;
+                    requested = produced(n);
+                }
+                if (cancelled)
+                    return;
+                missed = wip.addAndGet(-missed);
+                if (missed == 0)
+                    return;
+            }
+        }
+
+        private void awaitNext() {
+            CompletableFuture<T> read = channel.readAsync(executor);
+            pendingRead = read;
+            //cancel或者request出错时可能还没看到pendingRead
+            if (cancelled || error.get() != null)
+                read.cancel(false);
+            read.whenComplete((item, ex) -> {
+                pendingRead = null;
+                if (errored() || cancelled)
+                    return;
+                if (ex != null) {
+                    terminate(ex instanceof ChannelAlreadyClosedException ? null : ex);
+                    return;
+                }
+                if (onNext(item)) {
+                    produced(1);
+                    drain();
+                }
+            });
+        }
+
+        private boolean onNext(T item) {
+            if (cancelled)
+                return false;
+            if (item == null) {
+                terminate(new NullPointerException("channel delivered null, which Flow does not allow"));
+                return false;
+            }
+            try {
+                subscriber.onNext(item);
+                return true;
+            } catch (Throwable e) {
+                cancel();
+                return false;
+            }
+        }
+
+        /**
+         * 有request留下的错误就结束订阅，持有wip时调用
+         */
+        private boolean errored() {
+            Throwable e = error.get();
+            if (e == null)
+                return false;
+            terminate(e);
+            return true;
+        }
+
+        /**
+         * 发出onComplete或者onError，只发一次，持有wip时调用
+         *
+         * @param e 为null时onComplete
+         */
+        private void terminate(Throwable e) {
+            if (done)
+                return;
+            done = true;
+            cancel();
+            if (e == null)
+                subscriber.onComplete();
+            else
+                subscriber.onError(e);
+        }
+
+        private long produced(long n) {
+            return demand.accumulateAndGet(n, (current, sub) -> current == Long.MAX_VALUE ? current : current - sub);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.yuyuko.selector;
+
+/**
+ * {@link Channel#stats()}的快照，计数器是各自读的，彼此之间不保证一致
+ */
+public final class ChannelStats {
+    private final boolean enabled;
+
+    private final long written;
+
+    private final long read;
+
+    private final int buffered;
+
+    private final int waitingReaders;
+
+    private final int waitingWriters;
+
+    private final long parks;
+
+    private final long parkedNanos;
+
+    private final long contended;
+
+    ChannelStats(ChannelMetrics metrics, int buffered, int waitingReaders, int waitingWriters) {
+        enabled = metrics != null;
+        written = enabled ? metrics.written.sum() : 0L;
+        read = enabled ? metrics.read.sum() : 0L;
+        parks = enabled ? metrics.parks.sum() : 0L;
+        parkedNanos = enabled ? metrics.parkedNanos.sum() : 0L;
+        contended = enabled ? metrics.contended.sum() : 0L;
+        this.buffered = buffered;
+        this.waitingReaders = waitingReaders;
+        this.waitingWriters = waitingWriters;
+    }
+
+    /**
+     * @return 是否开启了统计，没有开启时计数器都是0，只有缓冲区和等待队列的长度
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long written() {
+        return written;
+    }
+
+    public long read() {
+        return read;
+    }
+
+    /**
+     * @return 缓冲区里的个数，{@link ByteChannel}等按记录数算
+     */
+    public int buffered() {
+        return buffered;
+    }
+
+    /**
+     * @return 在等待队列里的读者个数，包括select
+     */
+    public int waitingReaders() {
+        return waitingReaders;
+    }
+
+    public int waitingWriters() {
+        return waitingWriters;
+    }
+
+    /**
+     * @return 读写需要等待对方的次数
+     */
+    public long parks() {
+        return parks;
+    }
+
+    public long parkedNanos() {
+        return parkedNanos;
+    }
+
+    /**
+     * @return 加锁时锁已经被占用的次数
+     */
+    public long contended() {
+        return contended;
+    }
+
+    @Override
+    public String toString() {
+        return "ChannelStats{" +
+                "written=" + written +
+                ", read=" + read +
+                ", buffered=" + buffered +
+                ", waitingReaders=" + waitingReaders +
+                ", waitingWriters=" + waitingWriters +
+                ", parks=" + parks +
+                ", parkedNanos=" + parkedNanos +
+                ", contended=" + contended +
+                '}';
+    }
+}
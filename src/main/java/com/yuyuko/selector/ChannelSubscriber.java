@@ -0,0 +1,75 @@
+package com.yuyuko.selector;
+
+import java.util.Objects;
+import java.util.concurrent.Flow;
+
+/**
+ * 把上游的{@link Flow.Publisher}接到channel上，见{@link Channels#subscriber(Channel, int)}
+ * <p>
+ * 每写完batchSize个再要batchSize个，上游最多领先一批；缓冲区满时{@link #onNext}阻塞，
+ * 这就是背压。上游结束或者出错时关闭channel
+ */
+final class ChannelSubscriber<T> implements Flow.Subscriber<T> {
+    private final Channel<T> channel;
+
+    private final int batchSize;
+
+    private Flow.Subscription subscription;
+
+    /**
+     * 这一批已经写入的个数，onNext是串行调用的，不需要同步
+     */
+    private int received;
+
+    ChannelSubscriber(Channel<T> channel, int batchSize) {
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("batchSize must be positive");
+        this.channel = Objects.requireNonNull(channel);
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        subscription.request(batchSize);
+    }
+
+    @Override
+    public void onNext(T item) {
+        try {
+            channel.write(item);
+        } catch (ChannelAlreadyClosedException e) {
+            //channel被别人关了，不再要数据
+            subscription.cancel();
+            return;
+        }
+        if (++received == batchSize) {
+            received = 0;
+            subscription.request(batchSize);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        close();
+    }
+
+    @Override
+    public void onComplete() {
+        close();
+    }
+
+    private void close() {
+        if (!channel.isClosed()) {
+            try {
+                channel.close();
+            } catch (ChannelAlreadyClosedException ignored) {
+                //和别人同时关闭
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.yuyuko.selector;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+
+/**
+ * channel相关的工具方法
+ */
+public final class Channels {
+    /**
+     * 每个任务一个虚拟线程，虚拟线程都是守护线程，不需要关闭
+     */
+    private static final ExecutorService VIRTUAL_EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+
+    private Channels() {
+    }
+
+    /**
+     * 相当于go的go语句，在一个新的虚拟线程里运行task
+     * <p>
+     * Channel和Selector的阻塞只用了{@link java.util.concurrent.locks.ReentrantLock}和
+     * {@link java.util.concurrent.locks.LockSupport}，没有synchronized，虚拟线程阻塞时
+     * 不会占住载体线程，可以同时有上百万个在channel上等待。
+     * 但不要给这样的channel用{@link WaitStrategy#busySpin()}，自旋会一直占着载体线程
+     */
+    public static void go(Runnable task) {
+        VIRTUAL_EXECUTOR.execute(task);
+    }
+
+    /**
+     * @return {@link #go}背后的executor，用来和其它需要Executor的API配合
+     */
+    public static Executor executor() {
+        return VIRTUAL_EXECUTOR;
+    }
+
+    /**
+     * 相当于go的time.After，过了delay之后收到一次当时的时间，之后再读会一直阻塞。
+     * 常用作select的超时case：
+     * <pre>{@code
+     * SelectionKey<?> key = Selector.open()
+     *         .register(responses, SelectionKey.read())
+     *         .register(Channels.after(Duration.ofSeconds(1)), SelectionKey.read())
+     *         .select();
+     * }</pre>
+     * 返回的channel是只读的，缓冲区为1。所有定时channel共用一个时间轮线程，精度为1毫秒，
+     * 同时有几万个也不会多占线程。提前不要了可以关闭它，时间轮马上释放这个定时器
+     */
+    public static Channel<Instant> after(Duration delay) {
+        return new TimerChannel(delay.toNanos(), 0L);
+    }
+
+    /**
+     * 相当于go的time.Tick，每过period收到一次当时的时间。读得慢时缓冲区里已经有一个，
+     * 错过的就丢掉，之后仍然对齐到原来的节拍。不用时关闭它来停止，见{@link #after(Duration)}
+     *
+     * @throws IllegalArgumentException period不是正数
+     */
+    public static Channel<Instant> tick(Duration period) {
+        if (period.isNegative() || period.isZero())
+            throw new IllegalArgumentException("non-positive period for tick");
+        long nanos = period.toNanos();
+        return new TimerChannel(nanos, nanos);
+    }
+
+    /**
+     * 每次最多64个，在{@link #executor()}里推给订阅者，见{@link #publisher(Channel, int, Executor)}
+     */
+    public static <T> Flow.Publisher<T> publisher(Channel<T> channel) {
+        return publisher(channel, 64, VIRTUAL_EXECUTOR);
+    }
+
+    /**
+     * 把channel当作{@link Flow.Publisher}，订阅者按request(n)的需求成批地读，channel关闭并取完之后onComplete。
+     * 多个订阅者竞争地读同一个channel，每个数据只给其中一个
+     * <p>
+     * 不为每个订阅者占用线程：有数据时在executor里推送，没有数据时用{@link Channel#readAsync(Executor)}等待。
+     * 取消订阅时正在等待的读会被取消，但已经交给它的数据会丢失
+     * <p>
+     * Flow不允许null，读到null时以{@link NullPointerException}结束订阅；
+     * request的参数不是正数时以{@link IllegalArgumentException}结束订阅
+     *
+     * @param batchSize 一次从channel里取的最大个数，也是一次加锁最多取的个数
+     * @param executor  推送数据的地方
+     */
+    public static <T> Flow.Publisher<T> publisher(Channel<T> channel, int batchSize, Executor executor) {
+        return new ChannelPublisher<>(channel, batchSize, executor);
+    }
+
+    /**
+     * 每批的大小为缓冲区的大小，最多256，无缓冲时为1，见{@link #subscriber(Channel, int)}
+     */
+    public static <T> Flow.Subscriber<T> subscriber(Channel<T> channel) {
+        return subscriber(channel, Math.max(1, Math.min(channel.bufferSize(), 256)));
+    }
+
+    /**
+     * 把上游的数据写进channel，每写完一批再向上游要一批。缓冲区满时写入阻塞，
+     * 上游的推送线程被挡住，就是背压。上游onComplete或onError时关闭channel，
+     * channel被别人关闭时取消订阅
+     */
+    public static <T> Flow.Subscriber<T> subscriber(Channel<T> channel, int batchSize) {
+        return new ChannelSubscriber<>(channel, batchSize);
+    }
+
+    /**
+     * 把channel的统计注册到平台MBeanServer，channel必须用{@link Channel.Builder#metrics(boolean)}开启了统计。
+     * 每次读属性都重新取一次快照，不再需要时用{@link #unregisterMBean(ObjectName)}注销
+     *
+     * @return 注册的名字，为com.yuyuko.selector:type=Channel,name=name
+     */
+    public static ObjectName registerMBean(String name, Channel<?> channel) {
+        if (!channel.stats().isEnabled())
+            throw new IllegalArgumentException("channel metrics are not enabled");
+        return register("Channel", name, new ChannelMXBean() {
+            @Override
+            public long getWritten() {
+                return channel.stats().written();
+            }
+
+            @Override
+            public long getRead() {
+                return channel.stats().read();
+            }
+
+            @Override
+            public int getBuffered() {
+                return channel.stats().buffered();
+            }
+
+            @Override
+            public int getWaitingReaders() {
+                return channel.stats().waitingReaders();
+            }
+
+            @Override
+            public int getWaitingWriters() {
+                return channel.stats().waitingWriters();
+            }
+
+            @Override
+            public long getParks() {
+                return channel.stats().parks();
+            }
+
+            @Override
+            public long getParkedNanos() {
+                return channel.stats().parkedNanos();
+            }
+
+            @Override
+            public long getContended() {
+                return channel.stats().contended();
+            }
+        });
+    }
+
+    /**
+     * 把selector的统计注册到平台MBeanServer，selector必须用{@link Selector#metrics(boolean)}开启了统计
+     *
+     * @return 注册的名字，为com.yuyuko.selector:type=Selector,name=name
+     */
+    public static ObjectName registerMBean(String name, Selector selector) {
+        if (selector.stats() == null)
+            throw new IllegalArgumentException("selector metrics are not enabled");
+        return register("Selector", name, new SelectorMXBean() {
+            private SelectorStats stats() {
+                SelectorStats stats = selector.stats();
+                return stats != null ? stats : new SelectorStats(0L, 0L, new long[0], 0L, 0L);
+            }
+
+            @Override
+            public long getSelects() {
+                return stats().selects();
+            }
+
+            @Override
+            public long getFallbacks() {
+                return stats().fallbacks();
+            }
+
+            @Override
+            public double getFallbackRate() {
+                return stats().fallbackRate();
+            }
+
+            @Override
+            public long[] getWins() {
+                return stats().wins();
+            }
+
+            @Override
+            public long getParks() {
+                return stats().parks();
+            }
+
+            @Override
+            public long getParkedNanos() {
+                return stats().parkedNanos();
+            }
+        });
+    }
+
+    public static void unregisterMBean(ObjectName name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ObjectName register(String type, String name, Object mbean) {
+        try {
+            ObjectName objectName = new ObjectName("com.yuyuko.selector:type=" + type +
+                    ",name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.yuyuko.selector;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按需增长的缓冲区，由定长的块连成链表，写满一块再分配下一块，读完一块就丢掉，
+ * 全部读完之后一块都不留。容量只是上限，不会预先分配
+ * <p>
+ * 链表的头尾要一起动，这里用一把只保护几次数组读写的小锁，它总是最后加的锁
+ */
+final class ChunkedBuffer<T> implements Buffer<T> {
+    static final int CHUNK_SIZE = 32;
+
+    private static final class Chunk {
+        /**
+         * 按缓冲区的类型只分配其中一个
+         */
+        final Object[] refs;
+
+        final long[] bits;
+
+        Chunk next;
+
+        Chunk(boolean primitive) {
+            refs = primitive ? null : new Object[CHUNK_SIZE];
+            bits = primitive ? new long[CHUNK_SIZE] : null;
+        }
+    }
+
+    private final int capacity;
+
+    /**
+     * 是否存原始类型，见{@link PrimitiveChannel}
+     */
+    private final boolean primitive;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 读在head块的headIndex，写在tail块的tailIndex，需持有lock
+     */
+    private Chunk head;
+
+    private Chunk tail;
+
+    private int headIndex;
+
+    private int tailIndex;
+
+    /**
+     * 在锁内更新，在锁外读
+     */
+    private volatile int size;
+
+    ChunkedBuffer(int capacity, boolean primitive) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        this.primitive = primitive;
+    }
+
+    @Override
+    public boolean offer(Channel.Node<T> from) {
+        lock.lock();
+        try {
+            if (size >= capacity)
+                return false;
+            if (tail == null) {
+                head = tail = new Chunk(primitive);
+                headIndex = tailIndex = 0;
+            } else if (tailIndex == CHUNK_SIZE) {
+                tail = tail.next = new Chunk(primitive);
+                tailIndex = 0;
+            }
+            if (primitive)
+                tail.bits[tailIndex] = from.getBits();
+            else
+                tail.refs[tailIndex] = from.getData();
+            tailIndex++;
+            size++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean poll(Channel.Node<T> to) {
+        lock.lock();
+        try {
+            if (size == 0)
+                return false;
+            if (primitive)
+                to.setBits(head.bits[headIndex]);
+            else {
+                to.setData((T) head.refs[headIndex]);
+                head.refs[headIndex] = null;
+            }
+            headIndex++;
+            size--;
+            //读空了把块都还回去，读完一块就跳到下一块
+            if (size == 0)
+                head = tail = null;
+            else if (headIndex == CHUNK_SIZE) {
+                head = head.next;
+                headIndex = 0;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean isFull() {
+        return size >= capacity;
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+}
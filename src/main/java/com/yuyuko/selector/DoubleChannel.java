@@ -0,0 +1,80 @@
+package com.yuyuko.selector;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 传double的channel，用readDouble/writeDouble读写时不装箱，
+ * 在select里用{@link SelectionKey#readDouble()}和{@link SelectionKey#writeDouble(double)}
+ */
+public class DoubleChannel extends PrimitiveChannel<Double> {
+    public DoubleChannel() {
+        this(0);
+    }
+
+    public DoubleChannel(int bufferSize) {
+        this(Channel.<Double>builder().bufferSize(bufferSize));
+    }
+
+    /**
+     * 用{@link Channel#builder()}配置缓冲区、锁和等待策略
+     */
+    public DoubleChannel(Builder<?> builder) {
+        super(builder);
+    }
+
+    @Override
+    long toBits(Double data) {
+        return Double.doubleToRawLongBits(data);
+    }
+
+    @Override
+    Double fromBits(long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+
+    @Override
+    Class<?> primitiveType() {
+        return double.class;
+    }
+
+    public void writeDouble(double data) {
+        writeBits(Double.doubleToRawLongBits(data));
+    }
+
+    /**
+     * 最多等待timeout，超时之后数据不会被发送
+     *
+     * @throws TimeoutException 超时
+     */
+    public void writeDouble(double data, long timeout, TimeUnit unit) throws TimeoutException {
+        writeBits(Double.doubleToRawLongBits(data), timeout, unit);
+    }
+
+    /**
+     * 不阻塞地发送
+     *
+     * @return 有等待的读者或者缓冲区有空间，发送成功返回true，否则返回false
+     * @throws ChannelAlreadyClosedException 通道已关闭
+     */
+    public boolean tryWriteDouble(double data) {
+        return tryWriteBits(Double.doubleToRawLongBits(data));
+    }
+
+    /**
+     * @throws ChannelAlreadyClosedException 通道已关闭且缓冲区已取完
+     */
+    public double readDouble() {
+        return Double.longBitsToDouble(readBits());
+    }
+
+    /**
+     * 最多等待timeout
+     *
+     * @throws TimeoutException              超时
+     * @throws ChannelAlreadyClosedException 通道已关闭且缓冲区已取完
+     */
+    public double readDouble(long timeout, TimeUnit unit) throws TimeoutException {
+        return Double.longBitsToDouble(readBits(timeout, unit));
+    }
+}
@@ -0,0 +1,80 @@
+package com.yuyuko.selector;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 传int的channel，用readInt/writeInt读写时不装箱，
+ * 在select里用{@link SelectionKey#readInt()}和{@link SelectionKey#writeInt(int)}
+ */
+public class IntChannel extends PrimitiveChannel<Integer> {
+    public IntChannel() {
+        this(0);
+    }
+
+    public IntChannel(int bufferSize) {
+        this(Channel.<Integer>builder().bufferSize(bufferSize));
+    }
+
+    /**
+     * 用{@link Channel#builder()}配置缓冲区、锁和等待策略
+     */
+    public IntChannel(Builder<?> builder) {
+        super(builder);
+    }
+
+    @Override
+    long toBits(Integer data) {
+        return data;
+    }
+
+    @Override
+    Integer fromBits(long bits) {
+        return (int) bits;
+    }
+
+    @Override
+    Class<?> primitiveType() {
+        return int.class;
+    }
+
+    public void writeInt(int data) {
+        writeBits(data);
+    }
+
+    /**
+     * 最多等待timeout，超时之后数据不会被发送
+     *
+     * @throws TimeoutException 超时
+     */
+    public void writeInt(int data, long timeout, TimeUnit unit) throws TimeoutException {
+        writeBits(data, timeout, unit);
+    }
+
+    /**
+     * 不阻塞地发送
+     *
+     * @return 有等待的读者或者缓冲区有空间，发送成功返回true，否则返回false
+     * @throws ChannelAlreadyClosedException 通道已关闭
+     */
+    public boolean tryWriteInt(int data) {
+        return tryWriteBits(data);
+    }
+
+    /**
+     * @throws ChannelAlreadyClosedException 通道已关闭且缓冲区已取完
+     */
+    public int readInt() {
+        return (int) readBits();
+    }
+
+    /**
+     * 最多等待timeout
+     *
+     * @throws TimeoutException              超时
+     * @throws ChannelAlreadyClosedException 通道已关闭且缓冲区已取完
+     */
+    public int readInt(long timeout, TimeUnit unit) throws TimeoutException {
+        return (int) readBits(timeout, unit);
+    }
+}
@@ -0,0 +1,80 @@
+package com.yuyuko.selector;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 传long的channel，用readLong/writeLong读写时不装箱，
+ * 在select里用{@link SelectionKey#readLong()}和{@link SelectionKey#writeLong(long)}
+ */
+public class LongChannel extends PrimitiveChannel<Long> {
+    public LongChannel() {
+        this(0);
+    }
+
+    public LongChannel(int bufferSize) {
+        this(Channel.<Long>builder().bufferSize(bufferSize));
+    }
+
+    /**
+     * 用{@link Channel#builder()}配置缓冲区、锁和等待策略
+     */
+    public LongChannel(Builder<?> builder) {
+        super(builder);
+    }
+
+    @Override
+    long toBits(Long data) {
+        return data;
+    }
+
+    @Override
+    Long fromBits(long bits) {
+        return bits;
+    }
+
+    @Override
+    Class<?> primitiveType() {
+        return long.class;
+    }
+
+    public void writeLong(long data) {
+        writeBits(data);
+    }
+
+    /**
+     * 最多等待timeout，超时之后数据不会被发送
+     *
+     * @throws TimeoutException 超时
+     */
+    public void writeLong(long data, long timeout, TimeUnit unit) throws TimeoutException {
+        writeBits(data, timeout, unit);
+    }
+
+    /**
+     * 不阻塞地发送
+     *
+     * @return 有等待的读者或者缓冲区有空间，发送成功返回true，否则返回false
+     * @throws ChannelAlreadyClosedException 通道已关闭
+     */
+    public boolean tryWriteLong(long data) {
+        return tryWriteBits(data);
+    }
+
+    /**
+     * @throws ChannelAlreadyClosedException 通道已关闭且缓冲区已取完
+     */
+    public long readLong() {
+        return readBits();
+    }
+
+    /**
+     * 最多等待timeout
+     *
+     * @throws TimeoutException              超时
+     * @throws ChannelAlreadyClosedException 通道已关闭且缓冲区已取完
+     */
+    public long readLong(long timeout, TimeUnit unit) throws TimeoutException {
+        return readBits(timeout, unit);
+    }
+}
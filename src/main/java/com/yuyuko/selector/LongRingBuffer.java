@@ -0,0 +1,24 @@
+package com.yuyuko.selector;
+
+/**
+ * 存原始类型的环形缓冲区，int和double也编码成long放在这里，
+ * 数据只经过{@link Channel.Node#getBits()}，不会装箱
+ */
+final class LongRingBuffer<T> extends RingBuffer<T> {
+    private final long[] slots;
+
+    LongRingBuffer(int capacity) {
+        super(capacity);
+        slots = new long[length];
+    }
+
+    @Override
+    void store(int idx, Channel.Node<T> from) {
+        slots[idx] = from.getBits();
+    }
+
+    @Override
+    void load(int idx, Channel.Node<T> to) {
+        to.setBits(slots[idx]);
+    }
+}
@@ -0,0 +1,107 @@
+package com.yuyuko.selector;
+
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * 缓冲区放在内存映射文件里的channel，进程重启之后用同一个文件和同样的bufferSize重新打开，
+ * 可以接着读上次没读完的数据。阻塞和select与{@link Channel#Channel(int)}相同
+ * <p>
+ * 同一个文件同一时间只能被一个MappedChannel打开，打开时加文件锁，关闭时放开。
+ * 关闭只影响这个channel对象，不会写进文件：关闭之后缓冲区里没读完的数据不再从这个对象读出，
+ * 留在文件里给下一次打开的channel
+ * <p>
+ * bufferSize是数据区的字节数，每条记录另占{@link MappedRingBuffer#RECORD_HEADER}字节，
+ * 数据经{@link Serializer}直接序列化进映射内存。
+ * 直接交给等待中的读者的数据不经过缓冲区，也就不会写进文件
+ */
+public class MappedChannel<T> extends Channel<T> {
+    private final Serializer<T> serializer;
+
+    private final MappedRingBuffer<T> mapped;
+
+    /**
+     * @param file       文件不存在时创建
+     * @param bufferSize 数据区的字节数，必须为正
+     * @throws java.io.UncheckedIOException     打开或映射文件失败
+     * @throws IllegalArgumentException 文件是用别的bufferSize创建的
+     * @throws IllegalStateException    文件已经被别的channel打开
+     */
+    public MappedChannel(Path file, int bufferSize, Serializer<T> serializer) {
+        this(file, serializer, Channel.<T>builder().bufferSize(bufferSize));
+    }
+
+    /**
+     * 用{@link Channel#builder()}配置缓冲区、锁和等待策略
+     */
+    public MappedChannel(Path file, Serializer<T> serializer, Builder<?> builder) {
+        this(serializer, builder, open(file, serializer, builder));
+    }
+
+    private MappedChannel(Serializer<T> serializer, Builder<?> builder, MappedRingBuffer<T> mapped) {
+        super(builder, size -> mapped);
+        this.serializer = serializer;
+        this.mapped = mapped;
+    }
+
+    /**
+     * 在调用父类的构造器之前打开文件，bufferSize为0时父类不会建缓冲区
+     */
+    private static <T> MappedRingBuffer<T> open(Path file, Serializer<T> serializer, Builder<?> builder) {
+        if (builder.bufferSize() == 0)
+            throw new IllegalArgumentException("bufferSize must be positive");
+        return new MappedRingBuffer<>(Objects.requireNonNull(file),
+                builder.bufferSize(), Objects.requireNonNull(serializer));
+    }
+
+    /**
+     * 关闭channel并放开文件锁
+     */
+    @Override
+    public void close() {
+        super.close();
+        mapped.release();
+    }
+
+    /**
+     * 把缓冲区和读写位置刷到磁盘上，不调用也不会因为进程崩溃丢数据，只防断电
+     */
+    public void force() {
+        mapped.force();
+    }
+
+    private int checkRecord(T data) {
+        int size = serializer.size(data);
+        if (size < 0 || size > mapped.maxRecordSize())
+            throw new IllegalArgumentException("record of " + size +
+                    " bytes exceeds max record size " + mapped.maxRecordSize());
+        return size;
+    }
+
+    @Override
+    void encode(Node<T> node, T data) {
+        node.setBits(checkRecord(data));
+        node.setData(data);
+    }
+
+    /**
+     * key的数据在注册时已经检查过
+     */
+    @Override
+    void encode(Node<T> node, SelectionKey<T> key) {
+        node.setBits(serializer.size(key.data()));
+        node.setData(key.data());
+    }
+
+    @Override
+    boolean hasAvailableBufferSpace(SelectionKey<T> key) {
+        return mapped.hasRoom(serializer.size(key.data()));
+    }
+
+    @Override
+    void checkKey(SelectionKey<T> key) {
+        super.checkKey(key);
+        if (key.type() == SelectionKey.WRITE)
+            checkRecord(key.data());
+    }
+}
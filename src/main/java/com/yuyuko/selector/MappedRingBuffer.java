@@ -0,0 +1,369 @@
+package com.yuyuko.selector;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 放在内存映射文件里的环形缓冲区，文件开头是记录读写位置的头部，后面是数据区。
+ * 每条记录是4字节的长度加上序列化的内容，序列化要求连续的空间，
+ * 末尾放不下时写一个{@link #WRAP}标记，跳到开头写
+ * <p>
+ * 每次读写之后都会更新头部，进程崩溃之后重新打开文件可以从上次的位置继续读，
+ * 已经交给读者但头部还没更新的那一条可能会再读到一次。
+ * 头部的读写位置有两份，轮流写，每份带序号和校验和，写到一半崩溃时校验不过，重新打开时用另一份，
+ * 不会用到半新半旧的位置。写进映射内存的数据由操作系统落盘，要防断电需要调用{@link #force()}
+ * <p>
+ * 同一个文件同一时间只能被一个channel打开，打开时对文件加锁，{@link #release()}之后才能再打开
+ */
+final class MappedRingBuffer<T> implements Buffer<T> {
+    static final int RECORD_HEADER = Integer.BYTES;
+
+    /**
+     * 文件头部的长度和布局
+     */
+    private static final int HEADER_SIZE = 64;
+
+    private static final int MAGIC = 0x4d434832;
+
+    private static final int MAGIC_OFFSET = 0;
+
+    private static final int CAPACITY_OFFSET = 4;
+
+    /**
+     * 两份读写位置的偏移，每份依次是序号、head、tail、used、count、校验和
+     */
+    private static final int SLOT_OFFSET = 8;
+
+    private static final int SLOT_SIZE = 24;
+
+    private static final int SEQ = 0;
+
+    private static final int HEAD = 4;
+
+    private static final int TAIL = 8;
+
+    private static final int USED = 12;
+
+    private static final int COUNT = 16;
+
+    private static final int CHECKSUM = 20;
+
+    /**
+     * 末尾放不下这条记录，读者跳到开头
+     */
+    private static final int WRAP = -1;
+
+    private final MappedByteBuffer file;
+
+    /**
+     * 一直开着，持有文件锁直到{@link #release()}
+     */
+    private final FileChannel fileChannel;
+
+    /**
+     * 数据区，读写时临时设置position和limit，需持有lock
+     */
+    private final MappedByteBuffer data;
+
+    private final int capacity;
+
+    private final Serializer<T> serializer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 数据区里的读写位置，需持有lock
+     */
+    private int head;
+
+    private int tail;
+
+    /**
+     * 已用的字节数，包括跳过的末尾，在锁内更新，在锁外读
+     */
+    private volatile int used;
+
+    private volatile int count;
+
+    /**
+     * 上一次写头部用的序号，下一次写另一份
+     */
+    private int seq;
+
+    /**
+     * 释放之后不再读写映射内存，没读完的数据留在文件里，需持有lock
+     */
+    private boolean released;
+
+    MappedRingBuffer(Path path, int capacity, Serializer<T> serializer) {
+        if (capacity < RECORD_HEADER)
+            throw new IllegalArgumentException("capacity must not be less than " + RECORD_HEADER);
+        if (capacity > Integer.MAX_VALUE - HEADER_SIZE)
+            throw new IllegalArgumentException("capacity too large");
+        this.capacity = capacity;
+        this.serializer = serializer;
+        try {
+            fileChannel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            lockFile(path);
+            file = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+            data = file.slice(HEADER_SIZE, capacity);
+            if (file.getInt(MAGIC_OFFSET) == MAGIC) {
+                if (file.getInt(CAPACITY_OFFSET) != capacity)
+                    throw new IllegalArgumentException(path + " was created with capacity " +
+                            file.getInt(CAPACITY_OFFSET));
+                recover(path);
+            } else {
+                file.putInt(CAPACITY_OFFSET, capacity);
+                persist();
+                file.putInt(MAGIC_OFFSET, MAGIC);
+            }
+        } catch (IOException e) {
+            closeFile();
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            closeFile();
+            throw e;
+        }
+    }
+
+    /**
+     * 别的进程持有锁时tryLock返回null，本进程里的别的channel持有锁时抛OverlappingFileLockException
+     */
+    private void lockFile(Path path) throws IOException {
+        FileLock fileLock;
+        try {
+            fileLock = fileChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            fileLock = null;
+        }
+        if (fileLock == null)
+            throw new IllegalStateException(path + " is already opened by another channel");
+    }
+
+    /**
+     * 放开文件锁，之后读写都失败，没读完的数据留在文件里给下一次打开的channel
+     */
+    void release() {
+        lock.lock();
+        try {
+            if (released)
+                return;
+            released = true;
+            count = 0;
+            closeFile();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeFile() {
+        try {
+            //文件锁随之释放，映射仍然有效
+            fileChannel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 记录的长度由channel事先算好放在{@link Channel.Node#getBits()}
+     */
+    @Override
+    public boolean offer(Channel.Node<T> from) {
+        int len = (int) from.getBits();
+        int need = RECORD_HEADER + len;
+        lock.lock();
+        try {
+            if (released)
+                return false;
+            //空了就从头开始，保证最大的记录也放得下
+            if (count == 0) {
+                head = 0;
+                tail = 0;
+                used = 0;
+            }
+            int skip = capacity - tail < need ? capacity - tail : 0;
+            if (used + skip + need > capacity)
+                return false;
+            //先序列化进空闲的空间，序列化失败时读写位置和WRAP标记都还没动
+            int start = skip > 0 ? 0 : tail;
+            data.limit(start + need).position(start + RECORD_HEADER);
+            try {
+                serializer.serialize(from.getData(), data);
+            } finally {
+                data.clear();
+            }
+            data.putInt(start, len);
+            if (skip >= RECORD_HEADER)
+                data.putInt(tail, WRAP);
+            tail = (start + need) % capacity;
+            used += skip + need;
+            count++;
+            persist();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean poll(Channel.Node<T> to) {
+        lock.lock();
+        try {
+            if (count == 0)
+                return false;
+            int len;
+            if (capacity - head < RECORD_HEADER || (len = data.getInt(head)) == WRAP) {
+                used -= capacity - head;
+                head = 0;
+                len = data.getInt(head);
+            }
+            int need = RECORD_HEADER + len;
+            data.limit(head + need).position(head + RECORD_HEADER);
+            try {
+                to.setData(serializer.deserialize(data));
+            } finally {
+                data.clear();
+            }
+            head = (head + need) % capacity;
+            used -= need;
+            count--;
+            persist();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把读写位置写进文件头部的另一份，最后写校验和，需持有lock
+     */
+    private void persist() {
+        seq++;
+        int slot = SLOT_OFFSET + (seq & 1) * SLOT_SIZE;
+        file.putInt(slot + SEQ, seq);
+        file.putInt(slot + HEAD, head);
+        file.putInt(slot + TAIL, tail);
+        file.putInt(slot + USED, used);
+        file.putInt(slot + COUNT, count);
+        file.putInt(slot + CHECKSUM, checksum(seq, head, tail, used, count));
+    }
+
+    /**
+     * 从两份读写位置里取校验通过且序号较新的一份
+     */
+    private void recover(Path path) {
+        int newest = -1;
+        for (int i = 0; i < 2; i++) {
+            int slot = SLOT_OFFSET + i * SLOT_SIZE;
+            int slotSeq = file.getInt(slot + SEQ);
+            if (checksum(slotSeq, file.getInt(slot + HEAD), file.getInt(slot + TAIL),
+                    file.getInt(slot + USED), file.getInt(slot + COUNT)) != file.getInt(slot + CHECKSUM))
+                continue;
+            if (newest < 0 || slotSeq - seq > 0) {
+                newest = slot;
+                seq = slotSeq;
+            }
+        }
+        if (newest < 0)
+            throw new IllegalStateException(path + " has a corrupted header");
+        head = file.getInt(newest + HEAD);
+        tail = file.getInt(newest + TAIL);
+        used = file.getInt(newest + USED);
+        count = file.getInt(newest + COUNT);
+    }
+
+    private static int checksum(int seq, int head, int tail, int used, int count) {
+        long h = mix(MAGIC, seq);
+        h = mix(h, head);
+        h = mix(h, tail);
+        h = mix(h, used);
+        h = mix(h, count);
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static long mix(long h, int v) {
+        return (h ^ v) * 0x9e3779b97f4a7c15L;
+    }
+
+    void force() {
+        lock.lock();
+        try {
+            if (!released)
+                file.force();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 单条记录序列化之后的最大字节数
+     */
+    int maxRecordSize() {
+        return capacity - RECORD_HEADER;
+    }
+
+    /**
+     * @return 记录数
+     */
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return 连一条空记录都放不下
+     */
+    @Override
+    public boolean isFull() {
+        return capacity - used < RECORD_HEADER;
+    }
+
+    @Override
+    public boolean canOffer(Channel.Node<T> from) {
+        return hasRoom((int) from.getBits());
+    }
+
+    /**
+     * 能否放下序列化之后len字节的记录，判断和{@link #offer}相同，要看末尾是否需要跳过
+     */
+    boolean hasRoom(int len) {
+        int need = RECORD_HEADER + len;
+        lock.lock();
+        try {
+            if (released)
+                return false;
+            if (count == 0)
+                return need <= capacity;
+            int skip = capacity - tail < need ? capacity - tail : 0;
+            return used + skip + need <= capacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 字节数
+     */
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+}
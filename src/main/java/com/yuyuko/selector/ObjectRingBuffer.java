@@ -0,0 +1,25 @@
+package com.yuyuko.selector;
+
+/**
+ * 存引用的环形缓冲区，普通的{@link Channel}用它
+ */
+final class ObjectRingBuffer<T> extends RingBuffer<T> {
+    private final Object[] slots;
+
+    ObjectRingBuffer(int capacity) {
+        super(capacity);
+        slots = new Object[length];
+    }
+
+    @Override
+    void store(int idx, Channel.Node<T> from) {
+        slots[idx] = from.getData();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    void load(int idx, Channel.Node<T> to) {
+        to.setData((T) slots[idx]);
+        slots[idx] = null;
+    }
+}
@@ -0,0 +1,337 @@
+package com.yuyuko.selector;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * 以channel为源的流水线，每个阶段在executor里运行，阶段之间用有界的channel连接，写满时阻塞就是背压
+ * <pre>{@code
+ * Channel<List<Result>> results = Pipeline.from(requests)
+ *         .filter(Request::isValid)
+ *         .workerPool(8, Request::handle)
+ *         .batch(100, Duration.ofMillis(10))
+ *         .channel();
+ * }</pre>
+ * <ul>
+ * <li>相邻的map和filter不建channel，融合成一个函数，在下一个阶段读数据的线程里直接执行</li>
+ * <li>上游的channel关闭并取完之后，阶段把自己的输出关闭，关闭一直传到最下游</li>
+ * <li>下游的channel被关闭，或者阶段的函数抛出异常时，阶段停下并关闭输出；
+ * 如果输入是流水线自己建的channel也关闭它，让上游的阶段跟着停下。{@link #from}传入的channel不会被关闭</li>
+ * </ul>
+ * 每个Pipeline只能往下接一次，map等方法返回新的Pipeline。函数抛出的异常交给线程的UncaughtExceptionHandler
+ */
+public final class Pipeline<T> {
+    /**
+     * 融合的函数返回它表示数据被filter丢掉了
+     */
+    private static final Object DROP = new Object();
+
+    private static final int DEFAULT_BUFFER_SIZE = 64;
+
+    private final Channel<Object> source;
+
+    /**
+     * source是否由流水线建立，只有这样的channel才会在下游停下时被关闭
+     */
+    private final boolean owned;
+
+    /**
+     * 还没有执行的map和filter，null表示没有
+     */
+    private final Function<Object, Object> fused;
+
+    private final int bufferSize;
+
+    private final Executor executor;
+
+    private final AtomicBoolean used = new AtomicBoolean();
+
+    private Pipeline(Channel<Object> source, boolean owned, Function<Object, Object> fused,
+                     int bufferSize, Executor executor) {
+        this.source = source;
+        this.owned = owned;
+        this.fused = fused;
+        this.bufferSize = bufferSize;
+        this.executor = executor;
+    }
+
+    /**
+     * 阶段之间的channel缓冲区大小默认为64，在{@link Channels#executor()}的虚拟线程里运行
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Pipeline<T> from(Channel<T> source) {
+        return new Pipeline<>((Channel<Object>) Objects.requireNonNull(source), false, null,
+                DEFAULT_BUFFER_SIZE, Channels.executor());
+    }
+
+    /**
+     * 之后的阶段新建的channel的缓冲区大小
+     */
+    public Pipeline<T> bufferSize(int bufferSize) {
+        if (bufferSize < 0)
+            throw new IllegalArgumentException("bufferSize < 0");
+        use();
+        return new Pipeline<>(source, owned, fused, bufferSize, executor);
+    }
+
+    /**
+     * 之后的阶段在哪里运行，可以是线程池；每个阶段一直占着一个线程直到结束，线程池要足够大
+     */
+    public Pipeline<T> executor(Executor executor) {
+        Objects.requireNonNull(executor);
+        use();
+        return new Pipeline<>(source, owned, fused, bufferSize, executor);
+    }
+
+    /**
+     * 与相邻的map、filter融合，不单独占线程和channel
+     */
+    @SuppressWarnings("unchecked")
+    public <R> Pipeline<R> map(Function<? super T, ? extends R> fn) {
+        Objects.requireNonNull(fn);
+        use();
+        return new Pipeline<>(source, owned, then(x -> fn.apply((T) x)), bufferSize, executor);
+    }
+
+    /**
+     * 与相邻的map、filter融合，不单独占线程和channel
+     */
+    @SuppressWarnings("unchecked")
+    public Pipeline<T> filter(Predicate<? super T> predicate) {
+        Objects.requireNonNull(predicate);
+        use();
+        return new Pipeline<>(source, owned, then(x -> predicate.test((T) x) ? x : DROP), bufferSize, executor);
+    }
+
+    /**
+     * 把这条流水线和others汇聚到一起，每个输入一个任务，同一个输入的数据保持顺序，
+     * 所有输入都关闭并取完之后关闭输出
+     */
+    @SafeVarargs
+    public final Pipeline<T> merge(Channel<? extends T>... others) {
+        use();
+        Channel<Object> out = newChannel();
+        AtomicInteger running = new AtomicInteger(others.length + 1);
+        start(running, () -> pump(source, fused, out, true), List.of(out));
+        for (Channel<? extends T> other : others) {
+            @SuppressWarnings("unchecked")
+            Channel<Object> input = (Channel<Object>) Objects.requireNonNull(other);
+            start(running, () -> pump(input, null, out, true), List.of(out));
+        }
+        return next(out);
+    }
+
+    /**
+     * 按key的hashCode把数据分到n个输出，相同key的数据进同一个输出并保持顺序。
+     * 只有一个任务在分发，某个输出写满时其它输出也要等着；某个输出被关闭之后分给它的数据被丢掉，
+     * 全部输出都被关闭时停下
+     */
+    @SuppressWarnings("unchecked")
+    public List<Pipeline<T>> partition(Function<? super T, ?> keyFn, int n) {
+        Objects.requireNonNull(keyFn);
+        if (n <= 0)
+            throw new IllegalArgumentException("n <= 0");
+        use();
+        List<Channel<Object>> outs = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            outs.add(newChannel());
+        start(new AtomicInteger(1), () -> {
+            boolean[] closed = new boolean[n];
+            int[] open = {n};
+            source.forEach(x -> {
+                Object data = fused == null ? x : fused.apply(x);
+                if (data == DROP)
+                    return;
+                int i = Math.floorMod(Objects.hashCode(keyFn.apply((T) data)), n);
+                if (closed[i])
+                    return;
+                try {
+                    outs.get(i).write(data);
+                } catch (ChannelAlreadyClosedException e) {
+                    closed[i] = true;
+                    if (--open[0] == 0)
+                        throw e;
+                }
+            });
+        }, outs);
+        List<Pipeline<T>> pipelines = new ArrayList<>(n);
+        for (Channel<Object> out : outs)
+            pipelines.add(next(out));
+        return Collections.unmodifiableList(pipelines);
+    }
+
+    /**
+     * 攒够size个数据，或者从攒到第一个开始过了linger，就把攒到的数据作为一个List发出去；
+     * 缓冲区里现有的数据一次取走。上游关闭时把没攒够的也发出去
+     */
+    @SuppressWarnings("unchecked")
+    public Pipeline<List<T>> batch(int size, Duration linger) {
+        if (size <= 0)
+            throw new IllegalArgumentException("size <= 0");
+        long lingerNanos = linger.toNanos();
+        use();
+        Channel<Object> out = newChannel();
+        start(new AtomicInteger(1), () -> {
+            List<Object> drained = new ArrayList<>();
+            List<Object> batch = new ArrayList<>(size);
+            boolean closed = false;
+            while (!closed) {
+                ReadResult<Object> result = source.receive(false, 0L);
+                if (result.isClosed())
+                    break;
+                add(batch, result.get());
+                if (batch.isEmpty())
+                    continue;
+                long deadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < size) {
+                    drained.clear();
+                    if (source.drainTo(drained, size - batch.size()) > 0) {
+                        for (Object x : drained)
+                            add(batch, x);
+                        continue;
+                    }
+                    long nanos = deadline - System.nanoTime();
+                    if (nanos <= 0L)
+                        break;
+                    result = source.receive(true, nanos);
+                    if (result.isClosed()) {
+                        closed = true;
+                        break;
+                    }
+                    if (!result.isPresent())
+                        break;
+                    add(batch, result.get());
+                }
+                if (!batch.isEmpty()) {
+                    out.write(batch);
+                    batch = new ArrayList<>(size);
+                }
+            }
+        }, List.of(out));
+        return (Pipeline<List<T>>) (Pipeline<?>) next(out);
+    }
+
+    /**
+     * n个任务竞争地读上游并执行fn，之前融合的map和filter也在这些任务里并行执行，输出不保证顺序。
+     * 任务每次只取一个数据，慢的数据不会压在某一个任务手里
+     */
+    @SuppressWarnings("unchecked")
+    public <R> Pipeline<R> workerPool(int n, Function<? super T, ? extends R> fn) {
+        Objects.requireNonNull(fn);
+        if (n <= 0)
+            throw new IllegalArgumentException("n <= 0");
+        use();
+        Function<Object, Object> work = then(x -> fn.apply((T) x));
+        Channel<Object> out = newChannel();
+        AtomicInteger running = new AtomicInteger(n);
+        for (int i = 0; i < n; i++)
+            start(running, () -> pump(source, work, out, n == 1), List.of(out));
+        return next(out);
+    }
+
+    /**
+     * 流水线的输出。没有待执行的map和filter时就是上游的channel，否则起一个阶段执行它们
+     */
+    @SuppressWarnings("unchecked")
+    public Channel<T> channel() {
+        use();
+        if (fused == null)
+            return (Channel<T>) source;
+        Channel<Object> out = newChannel();
+        start(new AtomicInteger(1), () -> pump(source, fused, out, true), List.of(out));
+        return (Channel<T>) out;
+    }
+
+    private void use() {
+        if (!used.compareAndSet(false, true))
+            throw new IllegalStateException("pipeline already used");
+    }
+
+    private <R> Pipeline<R> next(Channel<Object> out) {
+        return new Pipeline<>(out, true, null, bufferSize, executor);
+    }
+
+    private Channel<Object> newChannel() {
+        return new Channel<>(bufferSize);
+    }
+
+    /**
+     * 接在融合的函数后面，前面丢掉的数据不再交给fn
+     */
+    private Function<Object, Object> then(Function<Object, Object> fn) {
+        Function<Object, Object> before = fused;
+        if (before == null)
+            return fn;
+        return x -> {
+            Object data = before.apply(x);
+            return data == DROP ? DROP : fn.apply(data);
+        };
+    }
+
+    private void add(List<Object> batch, Object x) {
+        Object data = fused == null ? x : fused.apply(x);
+        if (data != DROP)
+            batch.add(data);
+    }
+
+    /**
+     * 把input的数据经过fn写进out，直到input关闭并取完
+     *
+     * @param prefetch 是否批量地取，多个任务竞争同一个input时不批量取
+     */
+    private static void pump(Channel<Object> input, Function<Object, Object> fn,
+                             Channel<Object> out, boolean prefetch) {
+        if (prefetch) {
+            input.forEach(x -> write(out, fn, x));
+            return;
+        }
+        ReadResult<Object> result;
+        while (!(result = input.receive(false, 0L)).isClosed())
+            write(out, fn, result.get());
+    }
+
+    private static void write(Channel<Object> out, Function<Object, Object> fn, Object x) {
+        Object data = fn == null ? x : fn.apply(x);
+        if (data != DROP)
+            out.write(data);
+    }
+
+    /**
+     * 在executor里运行一个阶段的任务，running个任务都正常结束之后关闭outs。
+     * 下游关闭或者任务失败时马上关闭outs，让同一阶段的其它任务也停下，并关闭流水线自己建的输入
+     */
+    private void start(AtomicInteger running, Runnable task, List<? extends Channel<?>> outs) {
+        executor.execute(() -> {
+            boolean completed = false;
+            try {
+                task.run();
+                completed = true;
+            } catch (ChannelAlreadyClosedException e) {
+                //下游已经关闭
+            } finally {
+                if (!completed) {
+                    outs.forEach(Pipeline::closeQuietly);
+                    if (owned)
+                        closeQuietly(source);
+                }
+                if (running.decrementAndGet() == 0)
+                    outs.forEach(Pipeline::closeQuietly);
+            }
+        });
+    }
+
+    private static void closeQuietly(Channel<?> channel) {
+        try {
+            channel.close();
+        } catch (ChannelAlreadyClosedException ignored) {
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.yuyuko.selector;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 原始类型channel的公共部分，数据编码成long放在{@link Channel.Node#getBits()}和{@link LongRingBuffer}里，
+ * 通过readXxx/writeXxx读写时从头到尾都不装箱。
+ * 继承自{@link Channel}的read/write等方法仍然可用，只在进出时装箱拆箱
+ */
+abstract class PrimitiveChannel<T> extends Channel<T> {
+    PrimitiveChannel(Builder<?> builder) {
+        super(builder, builder.bufferFactory(true));
+    }
+
+    /**
+     * 拆箱并编码成long，null会抛出NullPointerException
+     */
+    abstract long toBits(T data);
+
+    abstract T fromBits(long bits);
+
+    @Override
+    void encode(Node<T> node, T data) {
+        node.setBits(toBits(data));
+    }
+
+    @Override
+    T decode(Node<T> node) {
+        return fromBits(node.getBits());
+    }
+
+    @Override
+    void encode(Node<T> node, SelectionKey<T> key) {
+        node.setBits(key.primitiveType() != null ? key.bits() : toBits(key.data()));
+    }
+
+    @Override
+    void decode(Node<T> node, SelectionKey<T> key) {
+        if (key.primitiveType() != null)
+            key.setBits(node.getBits());
+        else
+            key.setData(fromBits(node.getBits()));
+    }
+
+    void writeBits(long bits) {
+        Node<T> node = localNode();
+        node.setBits(bits);
+        writeInternal(node, false, false, 0L);
+    }
+
+    void writeBits(long bits, long timeout, TimeUnit unit) throws TimeoutException {
+        Node<T> node = localNode();
+        node.setBits(bits);
+        if (!writeInternal(node, false, true, unit.toNanos(timeout)))
+            throw new TimeoutException("send timed out");
+    }
+
+    boolean tryWriteBits(long bits) {
+        Node<T> node = localNode();
+        node.setBits(bits);
+        return writeInternal(node, true, false, 0L);
+    }
+
+    /**
+     * @throws ChannelAlreadyClosedException 通道已关闭且缓冲区已取完，原始类型没有null可以返回
+     */
+    long readBits() {
+        Node<T> node = localNode();
+        if (readInternal(node, false, false, 0L) == CLOSED)
+            throw new ChannelAlreadyClosedException("receive from closed channel");
+        return node.getBits();
+    }
+
+    long readBits(long timeout, TimeUnit unit) throws TimeoutException {
+        Node<T> node = localNode();
+        int state = readInternal(node, false, true, unit.toNanos(timeout));
+        if (state == NOT_READY)
+            throw new TimeoutException("receive timed out");
+        if (state == CLOSED)
+            throw new ChannelAlreadyClosedException("receive from closed channel");
+        return node.getBits();
+    }
+}
@@ -0,0 +1,78 @@
+package com.yuyuko.selector;
+
+import java.util.NoSuchElementException;
+
+/**
+ * {@link Channel#tryRead()}的结果，相当于go的v, ok := <-ch加上"没有数据"的情况
+ * <p>
+ * 读到的数据可以是null，所以不用{@link java.util.Optional}
+ */
+public final class ReadResult<T> {
+    private static final int PRESENT = 0;
+
+    private static final int EMPTY = 1;
+
+    private static final int CLOSED = 2;
+
+    private static final ReadResult<?> EMPTY_RESULT = new ReadResult<>(null, EMPTY);
+
+    private static final ReadResult<?> CLOSED_RESULT = new ReadResult<>(null, CLOSED);
+
+    private final T data;
+
+    private final int state;
+
+    private ReadResult(T data, int state) {
+        this.data = data;
+        this.state = state;
+    }
+
+    public static <T> ReadResult<T> of(T data) {
+        return new ReadResult<>(data, PRESENT);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> ReadResult<T> empty() {
+        return (ReadResult<T>) EMPTY_RESULT;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> ReadResult<T> closed() {
+        return (ReadResult<T>) CLOSED_RESULT;
+    }
+
+    /**
+     * @return 是否读到了数据
+     */
+    public boolean isPresent() {
+        return state == PRESENT;
+    }
+
+    /**
+     * @return 通道是否已关闭且缓冲区已取完
+     */
+    public boolean isClosed() {
+        return state == CLOSED;
+    }
+
+    /**
+     * @return 读到的数据
+     * @throws NoSuchElementException 没有读到数据
+     */
+    public T get() {
+        if (state != PRESENT)
+            throw new NoSuchElementException(state == CLOSED ? "channel closed" : "no data available");
+        return data;
+    }
+
+    public T orElse(T other) {
+        return state == PRESENT ? data : other;
+    }
+
+    @Override
+    public String toString() {
+        return "ReadResult{" +
+                (state == PRESENT ? "data=" + data : state == EMPTY ? "EMPTY" : "CLOSED") +
+                '}';
+    }
+}
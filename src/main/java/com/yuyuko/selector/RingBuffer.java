@@ -0,0 +1,126 @@
+package com.yuyuko.selector;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * 有界无锁MPMC环形缓冲区，每个槽位带一个序号（Vyukov的算法）
+ * <p>
+ * 槽位序号等于pos时可写，等于pos+1时可读，读完之后置为pos+capacity留给下一圈。
+ * 容量不要求是2的幂，channel的bufferSize是多少就是多少。
+ * 容量为1时"可读"和"下一圈可写"的序号会重合，所以槽位至少有两个，容量另外检查
+ * <p>
+ * 与原始算法不同的是，遇到另一端已经抢到槽位但还没发布的情况会自旋等待，
+ * 所以{@link #poll}返回false时缓冲区是真的空了，{@link #offer}
+ * 返回false时是真的满了，channel据此决定是否要去park
+ * <p>
+ * 槽位怎么存由子类决定，见{@link ObjectRingBuffer}和{@link LongRingBuffer}
+ */
+abstract class RingBuffer<T> extends RingBufferPads.Pad2 implements Buffer<T> {
+    private static final VarHandle SEQUENCE = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final int capacity;
+
+    /**
+     * 槽位个数
+     */
+    final int length;
+
+    private final long[] sequences;
+
+    RingBuffer(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        length = Math.max(capacity, 2);
+        sequences = new long[length];
+        for (int i = 0; i < length; i++)
+            sequences[i] = i;
+        VarHandle.releaseFence();
+    }
+
+    /**
+     * 把节点里的数据存进槽位，槽位已被当前线程独占
+     */
+    abstract void store(int idx, Channel.Node<T> from);
+
+    /**
+     * 把槽位里的数据取进节点并清空槽位，槽位已被当前线程独占
+     */
+    abstract void load(int idx, Channel.Node<T> to);
+
+    @Override
+    public boolean offer(Channel.Node<T> from) {
+        long pos = getTail();
+        for (; ; ) {
+            int idx = index(pos);
+            long dif = ((long) SEQUENCE.getVolatile(sequences, idx)) - pos;
+            if (dif == 0) {
+                //只有槽位比容量多时这个检查才起作用
+                if (pos - getHead() >= capacity)
+                    return false;
+                if (casTail(pos, pos + 1)) {
+                    store(idx, from);
+                    SEQUENCE.setVolatile(sequences, idx, pos + 1);
+                    return true;
+                }
+                pos = getTail();
+            } else if (dif < 0) {
+                //上一圈的元素还没被取走，若已经有读者抢到了它，等读者把槽位还回来
+                if (getHead() <= pos - length)
+                    return false;
+                Thread.onSpinWait();
+            } else
+                pos = getTail();
+        }
+    }
+
+    @Override
+    public boolean poll(Channel.Node<T> to) {
+        long pos = getHead();
+        for (; ; ) {
+            int idx = index(pos);
+            long dif = ((long) SEQUENCE.getVolatile(sequences, idx)) - (pos + 1);
+            if (dif == 0) {
+                if (casHead(pos, pos + 1)) {
+                    load(idx, to);
+                    SEQUENCE.setVolatile(sequences, idx, pos + length);
+                    return true;
+                }
+                pos = getHead();
+            } else if (dif < 0) {
+                //写者已经抢到槽位但还没发布，等它写完
+                if (getTail() <= pos)
+                    return false;
+                Thread.onSpinWait();
+            } else
+                pos = getHead();
+        }
+    }
+
+    @Override
+    public int size() {
+        long head = getHead();
+        long size = getTail() - head;
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return getTail() <= getHead();
+    }
+
+    @Override
+    public boolean isFull() {
+        return getTail() - getHead() >= capacity;
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    private int index(long pos) {
+        return (int) (pos % length);
+    }
+}
@@ -0,0 +1,79 @@
+package com.yuyuko.selector;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * {@link RingBuffer}和{@link SpscRingBuffer}的父类，只是为了把head和tail隔开在不同的缓存行上，避免伪共享
+ */
+final class RingBufferPads {
+    private RingBufferPads() {
+    }
+
+    abstract static class Pad0 {
+        long p00, p01, p02, p03, p04, p05, p06, p07;
+    }
+
+    abstract static class Head extends Pad0 {
+        private static final VarHandle HEAD;
+
+        static {
+            try {
+                HEAD = MethodHandles.lookup().findVarHandle(Head.class, "head", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private volatile long head;
+
+        final long getHead() {
+            return head;
+        }
+
+        final boolean casHead(long expect, long update) {
+            return HEAD.compareAndSet(this, expect, update);
+        }
+
+        /**
+         * 只有一个线程写head时用，见{@link SpscRingBuffer}
+         */
+        final void setHeadRelease(long head) {
+            HEAD.setRelease(this, head);
+        }
+    }
+
+    abstract static class Pad1 extends Head {
+        long p10, p11, p12, p13, p14, p15, p16, p17;
+    }
+
+    abstract static class Tail extends Pad1 {
+        private static final VarHandle TAIL;
+
+        static {
+            try {
+                TAIL = MethodHandles.lookup().findVarHandle(Tail.class, "tail", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private volatile long tail;
+
+        final long getTail() {
+            return tail;
+        }
+
+        final boolean casTail(long expect, long update) {
+            return TAIL.compareAndSet(this, expect, update);
+        }
+
+        final void setTailRelease(long tail) {
+            TAIL.setRelease(this, tail);
+        }
+    }
+
+    abstract static class Pad2 extends Tail {
+        long p20, p21, p22, p23, p24, p25, p26, p27;
+    }
+}
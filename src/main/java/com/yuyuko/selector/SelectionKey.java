@@ -11,11 +11,32 @@ public class SelectionKey<T> {
 
     private T data;
 
+    /**
+     * 原始类型的key的数据，编码方式与{@link PrimitiveChannel}相同
+     */
+    private long bits;
+
+    /**
+     * 原始类型的key只能注册到对应的原始类型channel上，数据放在bits里，不装箱；普通的key为null
+     */
+    private final Class<?> primitiveType;
+
+    /**
+     * 读的key选中时通道已关闭
+     */
+    private boolean closed;
+
     private final int type;
 
     SelectionKey(T data, int type) {
+        this(data, type, null, 0L);
+    }
+
+    private SelectionKey(T data, int type, Class<?> primitiveType, long bits) {
         this.data = data;
         this.type = type;
+        this.primitiveType = primitiveType;
+        this.bits = bits;
     }
 
     public static <T> SelectionKey<T> read() {
@@ -26,28 +47,116 @@ public class SelectionKey<T> {
         return new SelectionKey<>(data, WRITE);
     }
 
-    public static SelectionKey fallback() {
+    public static SelectionKey<Void> fallback() {
         return new SelectionKey<>(null, FALLBACK);
     }
 
+    /**
+     * 从{@link IntChannel}读，用{@link #intData()}取数据，不装箱
+     */
+    public static SelectionKey<Integer> readInt() {
+        return new SelectionKey<>(null, READ, int.class, 0L);
+    }
+
+    public static SelectionKey<Integer> writeInt(int data) {
+        return new SelectionKey<>(null, WRITE, int.class, data);
+    }
+
+    /**
+     * 从{@link LongChannel}读，用{@link #longData()}取数据，不装箱
+     */
+    public static SelectionKey<Long> readLong() {
+        return new SelectionKey<>(null, READ, long.class, 0L);
+    }
+
+    public static SelectionKey<Long> writeLong(long data) {
+        return new SelectionKey<>(null, WRITE, long.class, data);
+    }
+
+    /**
+     * 从{@link DoubleChannel}读，用{@link #doubleData()}取数据，不装箱
+     */
+    public static SelectionKey<Double> readDouble() {
+        return new SelectionKey<>(null, READ, double.class, 0L);
+    }
+
+    public static SelectionKey<Double> writeDouble(double data) {
+        return new SelectionKey<>(null, WRITE, double.class, Double.doubleToRawLongBits(data));
+    }
+
     protected void setChannel(Channel<T> channel) {
         this.channel = channel;
     }
 
     protected void setData(T data) {
         this.data = data;
+        closed = false;
+    }
+
+    void setBits(long bits) {
+        this.bits = bits;
+        closed = false;
+    }
+
+    long bits() {
+        return bits;
+    }
+
+    /**
+     * 读的时候通道已关闭
+     */
+    void setClosed() {
+        data = null;
+        bits = 0L;
+        closed = true;
+    }
+
+    Class<?> primitiveType() {
+        return primitiveType;
     }
 
     public int type() {
         return type;
     }
 
+    /**
+     * @return 数据，原始类型的key会装箱，读的key通道已关闭时为null
+     */
+    @SuppressWarnings("unchecked")
     public T data() {
-        return data;
+        if (primitiveType == null || closed)
+            return data;
+        if (primitiveType == int.class)
+            return (T) Integer.valueOf((int) bits);
+        if (primitiveType == long.class)
+            return (T) Long.valueOf(bits);
+        return (T) Double.valueOf(Double.longBitsToDouble(bits));
     }
 
     public <E> E data(Class<E> clazz) {
-        return clazz.cast(data);
+        return clazz.cast(data());
+    }
+
+    /**
+     * @return {@link #readInt()}或{@link #writeInt(int)}的数据，读的key通道已关闭时为0
+     */
+    public int intData() {
+        return (int) bits;
+    }
+
+    public long longData() {
+        return bits;
+    }
+
+    public double doubleData() {
+        return Double.longBitsToDouble(bits);
+    }
+
+    /**
+     * @return 读的key选中时通道是否已关闭且缓冲区已取完，此时没有读到数据
+     */
+    public boolean isClosed() {
+        return closed;
     }
 
     public Channel<T> channel() {
@@ -57,8 +166,8 @@ public class SelectionKey<T> {
     @Override
     public String toString() {
         return "SelectionKey{" +
-                "data=" + data +
+                "data=" + data() +
                 ", type=" + (type == 0 ? "READ" : type == 1 ? "WRITE" : "FALLBACK") +
                 '}';
     }
-}
\ No newline at end of file
+}
@@ -1,27 +1,126 @@
 package com.yuyuko.selector;
 
-import java.util.*;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.LockSupport;
-import java.util.stream.Collectors;
 
+/**
+ * 可以在循环里反复select，每次select只重新打乱轮询顺序。同一时间只能有一个线程使用
+ * <p>
+ * select分两个阶段，任何时候最多只持有一个channel的锁：
+ * 先不加锁地按轮询顺序检查，看起来就绪的case只加它自己的锁去完成；
+ * 都没有就绪才逐个channel加锁入队，加锁后再检查一次，selected的CAS是提交点，
+ * 谁先把它从null改成自己的节点谁就完成这次select
+ */
 public class Selector {
-    private List<SelectionKey<?>> keys = new ArrayList<>();
+    private final List<SelectionKey<?>> keys = new ArrayList<>();
 
+    /**
+     * 轮询顺序，每次select重新打乱
+     */
+    private int[] pollOrder = new int[0];
+
+    /**
+     * 注册过的channel按{@link Channel#compareTo}排好，去掉了重复的，注册时维护，需要加锁时直接按它的顺序来
+     */
+    private Channel<?>[] lockOrder = new Channel<?>[0];
+
+    /**
+     * lockOrder里每个channel对应的key的下标，同一个channel注册多次时只加一次锁
+     */
+    private int[][] keysByChannel = new int[0][];
+
+    /**
+     * 阻塞时每个key对应的节点，下标与keys相同
+     * select结束时会把节点从所有队列里摘掉，所以可以复用
+     */
+    private Channel.Node<?>[] nodes = new Channel.Node<?>[0];
+
+    /**
+     * 阻塞时所有节点共享，第一个把它从null改成自己的节点的channel胜出
+     */
     private final AtomicReference<Channel.Node<?>> selected = new AtomicReference<>();
 
-    private SelectionKey fallback;
+    private SelectionKey<?> fallback;
+
+    private WaitStrategy waitStrategy = WaitStrategy.park();
+
+    /**
+     * 超时的select用它占住selected
+     */
+    private static final Channel.Node<?> TIMED_OUT = new Channel.Node<>(null);
+
+    /**
+     * 不阻塞的读写用它携带数据，不会进入等待队列
+     */
+    private final Channel.Node<?> carrier = new Channel.Node<>(null);
+
+    /**
+     * 没有开启统计时为null
+     */
+    private SelectorMetrics metrics;
+
+    /**
+     * 正在进行的异步select和它的executor，同一时间只有一个
+     */
+    private CompletableFuture<SelectionKey<?>> pending;
+
+    private Executor executor;
+
+    /**
+     * 异步select每一轮入队结束和被选中各到达一次，见{@link #arrive()}
+     */
+    private final AtomicInteger arrivals = new AtomicInteger();
 
     public <T> Selector register(Channel<T> ch, SelectionKey<T> key) {
         if (ch != null) {
+            ch.checkKey(key);
             key.setChannel(ch);
             keys.add(key);
+
+            int n = keys.size();
+            pollOrder = Arrays.copyOf(pollOrder, n);
+            nodes = Arrays.copyOf(nodes, n);
+            addToLockOrder(ch, n - 1);
+            if (metrics != null)
+                metrics.grow(n);
         }
         return this;
     }
 
-    public Selector fallback(SelectionKey key) {
+    /**
+     * 按id插入到lockOrder，已经有这个channel时只记下key的下标
+     */
+    private void addToLockOrder(Channel<?> ch, int index) {
+        int i = 0;
+        while (i < lockOrder.length && lockOrder[i].id() < ch.id())
+            i++;
+        if (i < lockOrder.length && lockOrder[i] == ch) {
+            int[] indexes = keysByChannel[i];
+            indexes = Arrays.copyOf(indexes, indexes.length + 1);
+            indexes[indexes.length - 1] = index;
+            keysByChannel[i] = indexes;
+            return;
+        }
+        int n = lockOrder.length;
+        lockOrder = Arrays.copyOf(lockOrder, n + 1);
+        keysByChannel = Arrays.copyOf(keysByChannel, n + 1);
+        System.arraycopy(lockOrder, i, lockOrder, i + 1, n - i);
+        System.arraycopy(keysByChannel, i, keysByChannel, i + 1, n - i);
+        lockOrder[i] = ch;
+        keysByChannel[i] = new int[]{index};
+    }
+
+    public Selector fallback(SelectionKey<?> key) {
         if (fallback != null)
             throw new RuntimeException("Selector must only have one fallback");
         if (key != null)
@@ -29,6 +128,35 @@ public class Selector {
         return this;
     }
 
+    /**
+     * 阻塞时的空转策略，默认为{@link WaitStrategy#park()}
+     */
+    public Selector waitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = Objects.requireNonNull(waitStrategy);
+        return this;
+    }
+
+    /**
+     * 开启后统计select次数、fallback次数、每个key被选中的次数和阻塞时间，用{@link #stats()}取快照
+     */
+    public Selector metrics(boolean enabled) {
+        if (!enabled)
+            metrics = null;
+        else if (metrics == null) {
+            metrics = new SelectorMetrics();
+            metrics.grow(keys.size());
+        }
+        return this;
+    }
+
+    /**
+     * @return 统计的快照，没有开启统计时为null
+     */
+    public SelectorStats stats() {
+        SelectorMetrics metrics = this.metrics;
+        return metrics == null ? null : metrics.snapshot();
+    }
+
     public static Selector open() {
         return new Selector();
     }
@@ -36,137 +164,397 @@ public class Selector {
     public SelectionKey<?> select() {
         if (keys.isEmpty())
             return null;
-        keys = unorder(keys);
-
-        List<Channel> lockOrder =
-                Collections.unmodifiableList(
-                        getLockOrder(keys.stream().map(SelectionKey::channel)
-                                .collect(Collectors.toList())));
-        lockAll(lockOrder);
-
-        for (SelectionKey<?> key : keys) {
-            Channel<?> channel = key.channel();
-            switch (key.type()) {
-                case SelectionKey.WRITE:
-                    if (channel.hasWaitingReader() || channel.hasAvailableBufferSpace() || channel.isClosed()) {
-                        if (!handleWrite(key, lockOrder))
-                            continue;
-                        return key;
-                    }
-                    break;
-                case SelectionKey.READ:
-                    if (channel.hasWaitingWriter() || channel.hasDataInBuffer() || channel.isClosed()) {
-                        if (!handleRead(key, lockOrder))
-                            continue;
-                        return key;
-                    }
-                    break;
-                default:
+        return selectInternal(false, 0L);
+    }
+
+    /**
+     * 最多阻塞timeout，有fallback时与{@link #select()}相同
+     *
+     * @throws TimeoutException 超时
+     */
+    public SelectionKey<?> select(long timeout, TimeUnit unit) throws TimeoutException {
+        if (keys.isEmpty())
+            return null;
+        SelectionKey<?> key = selectInternal(true, unit.toNanos(timeout));
+        if (key == null)
+            throw new TimeoutException("select timed out");
+        return key;
+    }
+
+    /**
+     * 完成所有已经就绪的case，像NIO的selectedKeys一样一次拿到多个结果。
+     * 按加锁顺序每个channel只加一次锁，完成它上面所有就绪的key；
+     * 一个都没有就绪时与{@link #select()}相同，有fallback放入fallback，否则阻塞到有一个完成
+     * <p>
+     * 每个key一次最多完成一个读写，读到的数据在key里，下一次select时会被覆盖
+     *
+     * @param ready 完成的key按加锁顺序放进来
+     * @return 放进ready的key的个数，没有注册任何key返回0
+     * @throws ChannelAlreadyClosedException 写的channel已关闭，在它之前完成的key已经放进ready了
+     */
+    public int selectReady(Collection<SelectionKey<?>> ready) {
+        Objects.requireNonNull(ready);
+        if (keys.isEmpty())
+            return 0;
+        SelectorMetrics metrics = this.metrics;
+        int n = 0;
+        for (int i = 0; i < lockOrder.length; i++) {
+            if (!anyReady(keysByChannel[i]))
+                continue;
+            Channel<?> chan = lockOrder[i];
+            chan.lock();
+            try {
+                for (int index : keysByChannel[i]) {
+                    SelectionKey<?> key = keys.get(index);
+                    if (!handle(key))
+                        continue;
+                    if (metrics != null)
+                        metrics.win(index);
+                    ready.add(key);
+                    n++;
+                }
+            } finally {
+                chan.unlock();
             }
         }
-        if (fallback != null) {
-            unlockAll(lockOrder);
-            return fallback;
+        if (n > 0) {
+            if (metrics != null)
+                metrics.selects.increment();
+            return n;
         }
+        ready.add(select());
+        return 1;
+    }
 
-        Thread thread = Thread.currentThread();
-
-        Map<Channel.Node<?>, SelectionKey<?>> nodeMap = new IdentityHashMap<>(keys.size());
-        //加入到每个channel的队列里，等待被唤醒
-        for (SelectionKey<?> key : keys) {
-            Channel.Node node = new Channel.Node(thread);
-            node.setSelected(selected);
-            if (key.type() == SelectionKey.WRITE) {
-                node.setData(key.data());
-                key.channel().getWriteQueue().add(node);
-            } else
-                key.channel().getReadQueue().add(node);
-            nodeMap.put(node, key);
-        }
+    /**
+     * @return 所有已经完成的key，见{@link #selectReady(Collection)}
+     */
+    public List<SelectionKey<?>> selectAll() {
+        List<SelectionKey<?>> ready = new ArrayList<>();
+        selectReady(ready);
+        return ready;
+    }
 
-        unlockAll(lockOrder);
+    /**
+     * 异步select，不阻塞也不占用线程：有就绪的case或者fallback时返回已完成的future，
+     * 否则在每个channel的队列里放一个回调节点，选中之后在{@link Channels#executor()}里完成future。
+     * 写的channel已关闭时future以{@link ChannelAlreadyClosedException}异常完成
+     * <p>
+     * future完成之前不能再用这个selector。取消future或者超时会把节点移出队列，
+     * 但如果这时已经有case被选中，它读到的数据就丢了
+     */
+    public CompletableFuture<SelectionKey<?>> selectAsync() {
+        return selectAsync(Channels.executor());
+    }
 
-        //等待被唤醒
-        while (selected.get() == null) {
-            LockSupport.park(thread);
+    /**
+     * @param executor 完成future的地方，future的回调也在这里执行
+     */
+    public CompletableFuture<SelectionKey<?>> selectAsync(Executor executor) {
+        Objects.requireNonNull(executor);
+        CompletableFuture<SelectionKey<?>> future = new CompletableFuture<>();
+        if (keys.isEmpty()) {
+            future.complete(null);
+            return future;
         }
+        if (metrics != null)
+            metrics.selects.increment();
+        this.executor = executor;
+        pending = future;
+        //被取消或者超时，和同步的超时一样抢占selected，再由入队的一方或者这里收尾
+        future.whenComplete((key, ex) -> {
+            if (ex != null && selected.compareAndSet(null, TIMED_OUT))
+                arrive();
+        });
+        selectAsyncRound();
+        return future;
+    }
 
-        SelectionKey key = nodeMap.get(selected.get());
-        key.setData(selected.get().getData());
-
-        if (key.type() == SelectionKey.WRITE && Thread.interrupted())
-            throw new ChannelAlreadyClosedException("one of the channel in select was " +
-                    "closed!");
-        return key;
+    /**
+     * 异步select的一轮，被选中却没拿到数据时再来一轮
+     */
+    private void selectAsyncRound() {
+        CompletableFuture<SelectionKey<?>> future = pending;
+        if (future.isDone())
+            return;
+        try {
+            SelectionKey<?> key = pollReady();
+            if (key != null) {
+                future.complete(key);
+                return;
+            }
+            arrivals.set(0);
+            selected.set(null);
+            enqueueAll(null, executor);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            return;
+        }
+        //future在selected清空之前被取消时，whenComplete抢不到selected，节点入队之后由这里替它抢占，
+        //否则节点会一直留在队列里，之后匹配上的数据交给已经完成的future就丢了
+        if (future.isDone() && selected.compareAndSet(null, TIMED_OUT))
+            arrive();
+        arrive();
     }
 
-    @SuppressWarnings("unchecked")
-    private <T> boolean handleRead(SelectionKey<T> key, List<Channel> lockOrder) {
-        Channel<T> chan = key.channel();
-        T data;
-        Object[] returnVal = chan.readInternal(true);
-        data = ((T) returnVal[0]);
-        //select失败
-        if (!((Boolean) returnVal[1]))
-            return false;
-        key.setData(data);
-        unlockAll(lockOrder);
-        return true;
+    /**
+     * 入队结束和被选中各调用一次，被选中可能发生在入队结束之前，后到的一方收尾
+     */
+    private void arrive() {
+        if (arrivals.incrementAndGet() == 2)
+            finishAsync();
     }
 
-    @SuppressWarnings("unchecked")
-    private <T> boolean handleWrite(SelectionKey<T> key, List<Channel> lockOrder) {
-        Channel<T> chan = key.channel();
+    private void finishAsync() {
+        removeWaiters();
+        Channel.Node<?> node = selected.get();
+        if (node == TIMED_OUT)
+            return;
+        if (node.isRetry()) {
+            selectAsyncRound();
+            return;
+        }
         try {
-            if (!chan.writeInternal(key.data(), true)) {
-                return false;
+            pending.complete(finish(node));
+        } catch (RuntimeException e) {
+            pending.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * @return 选中的key，超时返回null
+     */
+    private SelectionKey<?> selectInternal(boolean timed, long nanos) {
+        long deadline = timed ? System.nanoTime() + nanos : 0L;
+        SelectorMetrics metrics = this.metrics;
+        if (metrics != null)
+            metrics.selects.increment();
+        Thread thread = Thread.currentThread();
+        for (; ; ) {
+            SelectionKey<?> ready = pollReady();
+            if (ready != null)
+                return ready;
+
+            selected.set(null);
+            enqueueAll(thread, null);
+
+            //等待被唤醒
+            long parkedAt = metrics != null ? System.nanoTime() : 0L;
+            Channel.Node<?> node;
+            for (int counter = 0; (node = selected.get()) == null || !node.isFinished();
+                 counter = Channel.nextCounter(counter)) {
+                if (!timed) {
+                    waitStrategy.idle(thread, counter, Long.MAX_VALUE);
+                    continue;
+                }
+                nanos = deadline - System.nanoTime();
+                if (nanos > 0L)
+                    waitStrategy.idle(thread, counter, nanos);
+                //超时，抢在其它线程之前把selected占住，留在队列里的节点随之失效
+                else if (selected.compareAndSet(null, TIMED_OUT)) {
+                    removeWaiters();
+                    if (metrics != null)
+                        recordPark(metrics, parkedAt);
+                    return null;
+                }
+                //已经被选中，等对方完成
+                else
+                    waitStrategy.idle(thread, counter, Long.MAX_VALUE);
             }
-        } catch (ChannelAlreadyClosedException ex) {
-            unlockAll(lockOrder);
-            throw ex;
+
+            //没选中的节点还在别的channel的队列里，立刻摘掉
+            removeWaiters();
+            if (metrics != null)
+                recordPark(metrics, parkedAt);
+
+            //被选中了却没拿到数据，重新select
+            if (node.isRetry())
+                continue;
+
+            return finish(node);
         }
-        unlockAll(lockOrder);
-        return true;
     }
 
-    <T> List<T> unorder(List<T> keys) {
-        Random random = new Random();
-        int n = keys.size();
-        int[] pollOrder = new int[n];
-        for (int i = 1; i < n; i++) {
-            int j = random.nextInt(i + 1);
-            pollOrder[i] = pollOrder[j];
-            pollOrder[j] = i;
+    /**
+     * 第一阶段，不加锁检查，就绪的case只加它自己的锁
+     *
+     * @return 完成的key或者fallback，都没有返回null
+     */
+    private SelectionKey<?> pollReady() {
+        shuffle();
+        for (int i = 0; i < pollOrder.length; i++) {
+            SelectionKey<?> key = keys.get(pollOrder[i]);
+            if (isReady(key) && handle(key)) {
+                if (metrics != null)
+                    metrics.win(pollOrder[i]);
+                return key;
+            }
         }
+        if (fallback != null && metrics != null)
+            metrics.fallbacks.increment();
+        return fallback;
+    }
 
-        List<T> unordered = new ArrayList<>();
-        for (int order : pollOrder)
-            unordered.add(keys.get(order));
-        return unordered;
+    /**
+     * 第二阶段，逐个channel加锁入队，已经被选中就不用再入队了
+     *
+     * @param thread   阻塞等待的线程，节点按线程复用
+     * @param executor 不为null时用{@link Channel.AsyncNode}，每轮新建，被选中时在这里回调
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void enqueueAll(Thread thread, Executor executor) {
+        for (int i = 0; i < pollOrder.length; i++) {
+            SelectionKey key = keys.get(pollOrder[i]);
+            Channel.Node node = nodes[pollOrder[i]];
+            if (executor != null) {
+                Channel.AsyncNode asyncNode = new Channel.AsyncNode(executor);
+                asyncNode.setCallback(this::arrive);
+                node = asyncNode;
+                node.setSelected(selected);
+                nodes[pollOrder[i]] = node;
+            } else if (node == null || node.getThread() != thread) {
+                node = new Channel.Node(thread);
+                node.setSelected(selected);
+                nodes[pollOrder[i]] = node;
+            }
+            node.setFinished(false);
+            node.setRetry(false);
+            boolean write = key.type() == SelectionKey.WRITE;
+            if (write)
+                key.channel().encode(node, key);
+            else {
+                node.setData(null);
+                key.channel().prepareRead(node);
+            }
+            if (key.channel().enqueueSelect(node, write))
+                break;
+        }
     }
 
     /**
-     * 将所有case的通道加锁
+     * 被选中的节点已经完成，把结果放进它的key
      *
-     * @param lockOrder
+     * @throws ChannelAlreadyClosedException 选中的是写，通道已关闭
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private SelectionKey<?> finish(Channel.Node node) {
+        int index = indexOf(node);
+        if (metrics != null)
+            metrics.win(index);
+        SelectionKey key = keys.get(index);
+        boolean closed = node.interrupted();
+        if (key.type() == SelectionKey.WRITE) {
+            node.setData(null);
+            RuntimeException failure = node.takeFailure();
+            if (closed)
+                throw new ChannelAlreadyClosedException("one of the channel in select was " +
+                        "closed!");
+            if (failure != null)
+                throw failure;
+        } else if (closed)
+            key.setClosed();
+        else {
+            key.channel().decode(node, key);
+            node.setData(null);
+        }
+        return key;
+    }
+
+    /**
+     * 把所有节点移出等待队列，被选中的节点和没来得及入队的节点不在队列里，不受影响。
+     * 每个channel只加一次锁，同一时间只持有一个
      */
-    private void lockAll(List<Channel> lockOrder) {
-        for (Channel chan : lockOrder) {
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void removeWaiters() {
+        for (int i = 0; i < lockOrder.length; i++) {
+            Channel chan = lockOrder[i];
             chan.lock();
+            try {
+                for (int index : keysByChannel[i])
+                    if (nodes[index] != null)
+                        chan.removeWaiter(nodes[index]);
+            } finally {
+                chan.unlock();
+            }
         }
     }
 
+    private static void recordPark(SelectorMetrics metrics, long parkedAt) {
+        metrics.parks.increment();
+        metrics.parkedNanos.add(System.nanoTime() - parkedAt);
+    }
+
+    private int indexOf(Channel.Node<?> node) {
+        for (int i = 0; i < nodes.length; i++)
+            if (nodes[i] == node)
+                return i;
+        throw new IllegalStateException("selected node does not belong to this selector");
+    }
+
+    /**
+     * 不加锁检查key看起来是否就绪，只作参考
+     */
+    private static <T> boolean isReady(SelectionKey<T> key) {
+        Channel<T> channel = key.channel();
+        if (key.type() == SelectionKey.WRITE)
+            return channel.hasWaitingReader() || channel.hasAvailableBufferSpace(key) || channel.isClosed();
+        return channel.hasWaitingWriter() || channel.hasDataInBuffer() || channel.isClosed();
+    }
+
+    private boolean anyReady(int[] indexes) {
+        for (int index : indexes)
+            if (isReady(keys.get(index)))
+                return true;
+        return false;
+    }
+
     /**
-     * 将之前加锁的全部case解锁，解锁顺序与加锁顺序相反
+     * 不阻塞地完成key的读写
+     *
+     * @return 没能完成返回false
      */
-    private void unlockAll(List<Channel> lockOrder) {
-        ListIterator<Channel> iterator = lockOrder.listIterator(lockOrder.size());
-        while (iterator.hasPrevious())
-            iterator.previous().unlock();
+    private boolean handle(SelectionKey<?> key) {
+        return key.type() == SelectionKey.WRITE ? handleWrite(key) : handleRead(key);
     }
 
-    private List<Channel> getLockOrder(List<Channel> chans) {
-        chans.sort(null);
-        return chans;
+    @SuppressWarnings("unchecked")
+    private <T> boolean handleRead(SelectionKey<T> key) {
+        Channel<T> chan = key.channel();
+        Channel.Node<T> node = (Channel.Node<T>) carrier;
+        int state = chan.readInternal(node, true, false, 0L);
+        //select失败
+        if (state == Channel.NOT_READY)
+            return false;
+        if (state == Channel.CLOSED)
+            key.setClosed();
+        else {
+            chan.decode(node, key);
+            node.setData(null);
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> boolean handleWrite(SelectionKey<T> key) {
+        Channel<T> chan = key.channel();
+        Channel.Node<T> node = (Channel.Node<T>) carrier;
+        chan.encode(node, key);
+        try {
+            return chan.writeInternal(node, true, false, 0L);
+        } finally {
+            node.setData(null);
+        }
+    }
+
+    /**
+     * 打乱轮询顺序，避免总是选中同一个case
+     */
+    private void shuffle() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < pollOrder.length; i++) {
+            int j = random.nextInt(i + 1);
+            pollOrder[i] = pollOrder[j];
+            pollOrder[j] = i;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,18 @@
+package com.yuyuko.selector;
+
+/**
+ * 通过{@link Channels#registerMBean(String, Selector)}把{@link SelectorStats}暴露给JMX
+ */
+public interface SelectorMXBean {
+    long getSelects();
+
+    long getFallbacks();
+
+    double getFallbackRate();
+
+    long[] getWins();
+
+    long getParks();
+
+    long getParkedNanos();
+}
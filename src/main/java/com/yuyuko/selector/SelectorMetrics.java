@@ -0,0 +1,42 @@
+package com.yuyuko.selector;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * selector的计数器，selector同一时间只有一个线程使用，但快照可能在别的线程里取
+ */
+final class SelectorMetrics {
+    final LongAdder selects = new LongAdder();
+
+    final LongAdder fallbacks = new LongAdder();
+
+    final LongAdder parks = new LongAdder();
+
+    final LongAdder parkedNanos = new LongAdder();
+
+    /**
+     * 每个key被选中的次数，注册时变长
+     */
+    volatile AtomicLongArray wins = new AtomicLongArray(0);
+
+    void grow(int n) {
+        AtomicLongArray old = wins;
+        AtomicLongArray grown = new AtomicLongArray(n);
+        for (int i = 0; i < old.length(); i++)
+            grown.set(i, old.get(i));
+        wins = grown;
+    }
+
+    void win(int index) {
+        wins.getAndIncrement(index);
+    }
+
+    SelectorStats snapshot() {
+        AtomicLongArray wins = this.wins;
+        long[] copy = new long[wins.length()];
+        for (int i = 0; i < copy.length; i++)
+            copy[i] = wins.get(i);
+        return new SelectorStats(selects.sum(), fallbacks.sum(), copy, parks.sum(), parkedNanos.sum());
+    }
+}
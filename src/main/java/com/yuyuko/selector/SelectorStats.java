@@ -0,0 +1,73 @@
+package com.yuyuko.selector;
+
+import java.util.Arrays;
+
+/**
+ * {@link Selector#stats()}的快照
+ */
+public final class SelectorStats {
+    private final long selects;
+
+    private final long fallbacks;
+
+    private final long[] wins;
+
+    private final long parks;
+
+    private final long parkedNanos;
+
+    SelectorStats(long selects, long fallbacks, long[] wins, long parks, long parkedNanos) {
+        this.selects = selects;
+        this.fallbacks = fallbacks;
+        this.wins = wins;
+        this.parks = parks;
+        this.parkedNanos = parkedNanos;
+    }
+
+    /**
+     * @return select的次数，包括超时的
+     */
+    public long selects() {
+        return selects;
+    }
+
+    public long fallbacks() {
+        return fallbacks;
+    }
+
+    /**
+     * @return 选中fallback的比例，还没有select过为0
+     */
+    public double fallbackRate() {
+        return selects == 0 ? 0.0 : (double) fallbacks / selects;
+    }
+
+    /**
+     * @return 每个key被选中的次数，下标是注册的顺序
+     */
+    public long[] wins() {
+        return wins.clone();
+    }
+
+    /**
+     * @return 没有就绪的case、需要阻塞等待的次数
+     */
+    public long parks() {
+        return parks;
+    }
+
+    public long parkedNanos() {
+        return parkedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "SelectorStats{" +
+                "selects=" + selects +
+                ", fallbacks=" + fallbacks +
+                ", wins=" + Arrays.toString(wins) +
+                ", parks=" + parks +
+                ", parkedNanos=" + parkedNanos +
+                '}';
+    }
+}
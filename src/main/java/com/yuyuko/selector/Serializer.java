@@ -0,0 +1,66 @@
+package com.yuyuko.selector;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link MappedChannel}把数据写进文件时用的序列化方式
+ */
+public interface Serializer<T> {
+    /**
+     * 在写者的线程里调用，在这里做检查，{@link #serialize}不应该再失败
+     *
+     * @return 序列化之后的字节数
+     */
+    int size(T value);
+
+    /**
+     * 从out的position开始写入正好{@link #size}个字节
+     */
+    void serialize(T value, ByteBuffer out);
+
+    /**
+     * in从position到limit正好是一条记录，返回之后in就会被复用，不要留着它或者它的视图
+     */
+    T deserialize(ByteBuffer in);
+
+    static Serializer<byte[]> bytes() {
+        return new Serializer<byte[]>() {
+            @Override
+            public int size(byte[] value) {
+                return value.length;
+            }
+
+            @Override
+            public void serialize(byte[] value, ByteBuffer out) {
+                out.put(value);
+            }
+
+            @Override
+            public byte[] deserialize(ByteBuffer in) {
+                byte[] value = new byte[in.remaining()];
+                in.get(value);
+                return value;
+            }
+        };
+    }
+
+    static Serializer<String> utf8() {
+        return new Serializer<String>() {
+            @Override
+            public int size(String value) {
+                return value.getBytes(StandardCharsets.UTF_8).length;
+            }
+
+            @Override
+            public void serialize(String value, ByteBuffer out) {
+                out.put(value.getBytes(StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public String deserialize(ByteBuffer in) {
+                return StandardCharsets.UTF_8.decode(in).toString();
+            }
+        };
+    }
+}
@@ -0,0 +1,102 @@
+package com.yuyuko.selector;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * 单生产者单消费者的环形缓冲区，没有CAS，也不需要每个槽位的序号：
+ * 只有写者动tail，只有读者动head，写完槽位之后用release写发布新的位置，再加一道全屏障给channel的等待检查用。
+ * 双方各自缓存一份对方的位置，只有看起来满了或者空了才去读对方的volatile字段
+ * <p>
+ * "单"指同一时间只有一个，不要求总是同一个线程：channel在锁内替等待的一方读写缓冲区时，
+ * 那一方已经在等待队列里，不会同时读写，锁保证了前后两次读写之间的可见性
+ */
+final class SpscRingBuffer<T> extends RingBufferPads.Pad2 implements Buffer<T> {
+    private final int capacity;
+
+    /**
+     * 按缓冲区的类型只分配其中一个，见{@link PrimitiveChannel}
+     */
+    private final Object[] refs;
+
+    private final long[] bits;
+
+    /**
+     * 写者缓存的head，只有写者读写
+     */
+    private long headCache;
+
+    long p30, p31, p32, p33, p34, p35, p36, p37;
+
+    /**
+     * 读者缓存的tail，只有读者读写
+     */
+    private long tailCache;
+
+    SpscRingBuffer(int capacity, boolean primitive) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        refs = primitive ? null : new Object[capacity];
+        bits = primitive ? new long[capacity] : null;
+    }
+
+    @Override
+    public boolean offer(Channel.Node<T> from) {
+        long tail = getTail();
+        if (tail - headCache >= capacity) {
+            headCache = getHead();
+            if (tail - headCache >= capacity)
+                return false;
+        }
+        int idx = (int) (tail % capacity);
+        if (refs != null)
+            refs[idx] = from.getData();
+        else
+            bits[idx] = from.getBits();
+        setTailRelease(tail + 1);
+        //channel接着会看有没有等待的读者，读者是先入队再检查缓冲区，两边都要StoreLoad屏障，否则可能互相看不到
+        VarHandle.fullFence();
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean poll(Channel.Node<T> to) {
+        long head = getHead();
+        if (head >= tailCache) {
+            tailCache = getTail();
+            if (head >= tailCache)
+                return false;
+        }
+        int idx = (int) (head % capacity);
+        if (refs != null) {
+            to.setData((T) refs[idx]);
+            refs[idx] = null;
+        } else
+            to.setBits(bits[idx]);
+        setHeadRelease(head + 1);
+        VarHandle.fullFence();
+        return true;
+    }
+
+    @Override
+    public int size() {
+        long head = getHead();
+        return (int) Math.max(0, Math.min(getTail() - head, capacity));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return getTail() <= getHead();
+    }
+
+    @Override
+    public boolean isFull() {
+        return getTail() - getHead() >= capacity;
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,76 @@
+package com.yuyuko.selector;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Channels#after}和{@link Channels#tick}返回的只读channel，缓冲区为1，
+ * 由{@link TimingWheel}的线程在到期时写入当时的时间，缓冲区里的还没被读走时丢掉这一次
+ * <p>
+ * 所有写的方法都抛{@link UnsupportedOperationException}，注册写的key抛{@link IllegalArgumentException}。
+ * 关闭会取消定时器
+ */
+final class TimerChannel extends Channel<Instant> {
+    private final TimingWheel.Timeout timeout;
+
+    TimerChannel(long delay, long period) {
+        super(1);
+        timeout = TimingWheel.schedule(this, delay, period);
+    }
+
+    /**
+     * 时间轮的线程调用，不能阻塞
+     */
+    void fire() {
+        try {
+            writeInternal(Instant.now(), true);
+        } catch (ChannelAlreadyClosedException ignored) {
+            //关闭时已经取消了定时器，这是取消之前最后一次到期
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        timeout.cancel();
+    }
+
+    @Override
+    public void write(Instant data) {
+        throw readOnly();
+    }
+
+    @Override
+    public void write(Instant data, long timeout, TimeUnit unit) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean tryWrite(Instant data) {
+        throw readOnly();
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAsync(Instant data, Executor executor) {
+        throw readOnly();
+    }
+
+    @Override
+    public void writeAll(Collection<? extends Instant> c) {
+        throw readOnly();
+    }
+
+    @Override
+    void checkKey(SelectionKey<Instant> key) {
+        super.checkKey(key);
+        if (key.type() == SelectionKey.WRITE)
+            throw new IllegalArgumentException("timer channel is read-only");
+    }
+
+    private static UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("timer channel is read-only");
+    }
+}
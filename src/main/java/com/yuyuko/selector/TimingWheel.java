@@ -0,0 +1,241 @@
+package com.yuyuko.selector;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 所有定时channel共用的哈希时间轮，只有一个守护线程，每{@link #TICK_NANOS}转一格，
+ * 到期的定时器按到期的格数哈希到{@link #WHEEL_SIZE}个桶里，超过一圈的留在桶里等之后的圈。
+ * 增删定时器是O(1)，不管有多少个定时器都只有这一个线程
+ * <p>
+ * 新的定时器和取消都先放进无锁队列，由时间轮的线程在每一格开始时处理，桶只有这个线程访问，不用加锁。
+ * 没有定时器时线程一直park，新的定时器来了再唤醒，空闲时不会每毫秒醒一次
+ */
+final class TimingWheel {
+    /**
+     * 一格的长度，也是定时的精度
+     */
+    static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final int WHEEL_SIZE = 512;
+
+    private static final int MASK = WHEEL_SIZE - 1;
+
+    private static final TimingWheel INSTANCE = new TimingWheel();
+
+    private static final int WAITING = 0;
+
+    private static final int CANCELLED = 1;
+
+    private static final int EXPIRED = 2;
+
+    /**
+     * 一个定时器，周期性的定时器到期之后重新放回时间轮，一直是{@link #WAITING}直到被取消
+     */
+    static final class Timeout {
+        private final TimerChannel channel;
+
+        private final long period;
+
+        /**
+         * 下一次到期的时间，{@link System#nanoTime()}
+         */
+        private long deadline;
+
+        /**
+         * 到期的格数，从时间轮启动开始算
+         */
+        private long deadlineTick;
+
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        private Bucket bucket;
+
+        private Timeout prev;
+
+        private Timeout next;
+
+        private Timeout(TimerChannel channel, long deadline, long period) {
+            this.channel = channel;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        /**
+         * 取消之后不会再往channel里写，还在桶里的由时间轮的线程摘掉
+         */
+        void cancel() {
+            if (state.compareAndSet(WAITING, CANCELLED))
+                INSTANCE.cancelled.offer(this);
+        }
+    }
+
+    /**
+     * 双向链表，摘掉取消的定时器是O(1)
+     */
+    private static final class Bucket {
+        private Timeout head;
+
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = tail;
+            if (tail == null)
+                head = timeout;
+            else
+                tail.next = timeout;
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev == null)
+                head = timeout.next;
+            else
+                timeout.prev.next = timeout.next;
+            if (timeout.next == null)
+                tail = timeout.prev;
+            else
+                timeout.next.prev = timeout.prev;
+            timeout.bucket = null;
+            timeout.prev = timeout.next = null;
+        }
+    }
+
+    private final Bucket[] wheel = new Bucket[WHEEL_SIZE];
+
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+    private final long startTime = System.nanoTime();
+
+    private final Thread thread;
+
+    /**
+     * 线程没有定时器要等，park之前置为true，放入新定时器的线程看到它才去unpark
+     */
+    private volatile boolean idle;
+
+    /**
+     * 下一个要处理的格
+     */
+    private long tick;
+
+    /**
+     * 桶里的定时器个数，只有时间轮的线程访问
+     */
+    private int size;
+
+    private TimingWheel() {
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            wheel[i] = new Bucket();
+        thread = new Thread(this::run, "selector-timing-wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param delay  第一次到期前的纳秒数，会向上取整到格
+     * @param period 周期的纳秒数，0表示只到期一次
+     */
+    static Timeout schedule(TimerChannel channel, long delay, long period) {
+        Timeout timeout = new Timeout(channel, System.nanoTime() + Math.max(delay, 0L), period);
+        INSTANCE.pending.offer(timeout);
+        if (INSTANCE.idle)
+            LockSupport.unpark(INSTANCE.thread);
+        return timeout;
+    }
+
+    private void run() {
+        for (; ; ) {
+            long now = System.nanoTime();
+            long current = (now - startTime) / TICK_NANOS;
+            //时间轮是空的，空闲时tick没有动，放入新的定时器之前直接跳到当前，不去补空闲时的每一格
+            if (size == 0)
+                tick = current + 1;
+
+            transferPending();
+            removeCancelled();
+
+            for (; tick <= current; tick++)
+                expire(wheel[(int) (tick & MASK)], now);
+
+            if (size == 0 && pending.isEmpty()) {
+                idle = true;
+                //置idle之后再看一次，schedule先入队再读idle，两边总有一边能看到对方
+                if (pending.isEmpty())
+                    LockSupport.park(this);
+                idle = false;
+                continue;
+            }
+            long sleep = startTime + tick * TICK_NANOS - System.nanoTime();
+            if (sleep > 0L)
+                LockSupport.parkNanos(this, sleep);
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.state.get() == WAITING)
+                add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+                size--;
+            }
+        }
+    }
+
+    /**
+     * 按到期时间放进桶里，已经过期的放进下一格
+     */
+    private void add(Timeout timeout) {
+        long deadlineTick = (timeout.deadline - startTime + TICK_NANOS - 1) / TICK_NANOS;
+        timeout.deadlineTick = Math.max(deadlineTick, tick);
+        wheel[(int) (timeout.deadlineTick & MASK)].add(timeout);
+        size++;
+    }
+
+    /**
+     * 桶里只有到期的格数不超过tick的才真正到期，其它的是之后的圈
+     */
+    private void expire(Bucket bucket, long now) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.deadlineTick <= tick) {
+                bucket.remove(timeout);
+                size--;
+                fire(timeout, now);
+            }
+            timeout = next;
+        }
+    }
+
+    private void fire(Timeout timeout, long now) {
+        if (timeout.period == 0L) {
+            if (timeout.state.compareAndSet(WAITING, EXPIRED))
+                timeout.channel.fire();
+            return;
+        }
+        if (timeout.state.get() != WAITING)
+            return;
+        timeout.channel.fire();
+        //读得慢就丢掉错过的周期，下一次对齐到原来的节拍上
+        long next = timeout.deadline + timeout.period;
+        if (next <= now)
+            next += ((now - next) / timeout.period + 1) * timeout.period;
+        timeout.deadline = next;
+        add(timeout);
+    }
+}
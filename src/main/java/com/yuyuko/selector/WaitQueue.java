@@ -0,0 +1,91 @@
+package com.yuyuko.selector;
+
+/**
+ * 侵入式的双向链表，链接字段在{@link Channel.Node}里，任意节点都能O(1)移除，
+ * select选中之后可以立刻把其余channel里的节点摘掉，不用等别人出队时再跳过
+ * <p>
+ * 非线程安全，需持有所属channel的锁
+ */
+final class WaitQueue<T> {
+    private Channel.Node<T> head;
+
+    private Channel.Node<T> tail;
+
+    private int size;
+
+    void add(Channel.Node<T> node) {
+        node.queue = this;
+        node.prev = tail;
+        node.next = null;
+        if (tail == null)
+            head = node;
+        else
+            tail.next = node;
+        tail = node;
+        size++;
+    }
+
+    void addFirst(Channel.Node<T> node) {
+        node.queue = this;
+        node.prev = null;
+        node.next = head;
+        if (head == null)
+            tail = node;
+        else
+            head.prev = node;
+        head = node;
+        size++;
+    }
+
+    /**
+     * @return 队首节点，队列为空返回null
+     */
+    Channel.Node<T> poll() {
+        Channel.Node<T> node = head;
+        if (node != null)
+            unlink(node);
+        return node;
+    }
+
+    /**
+     * @return 队首节点，不移除，队列为空返回null
+     */
+    Channel.Node<T> peek() {
+        return head;
+    }
+
+    /**
+     * @return 节点在这个队列里并被移除返回true
+     */
+    boolean remove(Channel.Node<T> node) {
+        if (node.queue != this)
+            return false;
+        unlink(node);
+        return true;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void unlink(Channel.Node<T> node) {
+        Channel.Node<T> prev = node.prev;
+        Channel.Node<T> next = node.next;
+        if (prev == null)
+            head = next;
+        else
+            prev.next = next;
+        if (next == null)
+            tail = prev;
+        else
+            next.prev = prev;
+        node.prev = null;
+        node.next = null;
+        node.queue = null;
+        size--;
+    }
+}
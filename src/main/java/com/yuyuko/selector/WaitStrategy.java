@@ -0,0 +1,72 @@
+package com.yuyuko.selector;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 读写或select需要等待对方时如何空转
+ * <p>
+ * 等待方在条件不满足时反复调用{@link #idle}，直到被对方完成或者超时，
+ * 对方完成之后总会调用{@link LockSupport#unpark}，所以任何策略最后park都不会错过唤醒
+ */
+@FunctionalInterface
+public interface WaitStrategy {
+    /**
+     * 默认的自旋次数
+     */
+    int DEFAULT_SPINS = 100;
+
+    /**
+     * 默认的yield次数
+     */
+    int DEFAULT_YIELDS = 10;
+
+    /**
+     * 空转一次
+     *
+     * @param blocker 等待的对象，park时传给{@link LockSupport}
+     * @param counter 本次等待中已经空转的次数，从0开始
+     * @param nanos   剩余的等待时间，不限时为{@link Long#MAX_VALUE}
+     */
+    void idle(Object blocker, int counter, long nanos);
+
+    /**
+     * 直接park，不占CPU，默认的策略
+     */
+    static WaitStrategy park() {
+        return (blocker, counter, nanos) -> parkNanos(blocker, nanos);
+    }
+
+    /**
+     * 一直自旋，唤醒延迟最低，适合绑核且线程数不超过核数的场景
+     */
+    static WaitStrategy busySpin() {
+        return (blocker, counter, nanos) -> Thread.onSpinWait();
+    }
+
+    /**
+     * 先自旋spins次，再yield yields次，之后park
+     */
+    static WaitStrategy spinYieldPark(int spins, int yields) {
+        if (spins < 0 || yields < 0)
+            throw new IllegalArgumentException("spins and yields must not be negative");
+        return (blocker, counter, nanos) -> {
+            if (counter < spins)
+                Thread.onSpinWait();
+            else if (counter < spins + yields)
+                Thread.yield();
+            else
+                parkNanos(blocker, nanos);
+        };
+    }
+
+    static WaitStrategy spinYieldPark() {
+        return spinYieldPark(DEFAULT_SPINS, DEFAULT_YIELDS);
+    }
+
+    private static void parkNanos(Object blocker, long nanos) {
+        if (nanos == Long.MAX_VALUE)
+            LockSupport.park(blocker);
+        else
+            LockSupport.parkNanos(blocker, nanos);
+    }
+}
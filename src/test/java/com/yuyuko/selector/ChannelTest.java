@@ -2,11 +2,27 @@ package com.yuyuko.selector;
 
 import org.junit.jupiter.api.RepeatedTest;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -22,8 +38,21 @@ public class ChannelTest {
         test(0, 100, 50, 300);
     }
 
+    @RepeatedTest(5)
+    void waitStrategy() throws InterruptedException {
+        test(Channel.<Integer>builder().fair(false).waitStrategy(WaitStrategy.busySpin()).build(),
+                20, 10, 0);
+        test(Channel.<Integer>builder().bufferSize(4).fair(false)
+                .waitStrategy(WaitStrategy.spinYieldPark()).build(), 100, 10, 0);
+        test(Channel.<Integer>builder().waitStrategy(WaitStrategy.spinYieldPark(0, 0)).build(),
+                100, 10, 0);
+    }
+
     void test(int bufferSize, int testCnt, int threadCnt, int interval) throws InterruptedException {
-        Channel<Integer> channel = new Channel<>(bufferSize);
+        test(new Channel<>(bufferSize), testCnt, threadCnt, interval);
+    }
+
+    void test(Channel<Integer> channel, int testCnt, int threadCnt, int interval) throws InterruptedException {
         AtomicIntegerArray res = new AtomicIntegerArray(testCnt * threadCnt);
 
         ExecutorService executorService = Executors.newFixedThreadPool(threadCnt * 2);
@@ -84,6 +113,642 @@ public class ChannelTest {
         test(100, 100, 50, 300);
     }
 
+    @RepeatedTest(10)
+    void smallBuffer() throws InterruptedException {
+        test(1, 100, 50, 0);
+        test(4, 100, 50, 0);
+    }
+
+    @Test
+    void pingPong() throws InterruptedException {
+        Channel<Integer> ping = new Channel<>();
+        Channel<Integer> pong = new Channel<>();
+        int testCnt = 10000;
+        Thread thread = new Thread(() -> {
+            for (int i = 0; i < testCnt; i++)
+                pong.write(ping.read() + 1);
+        });
+        thread.start();
+        for (int i = 0; i < testCnt; i++) {
+            ping.write(i);
+            assertEquals(i + 1, pong.read());
+        }
+        thread.join();
+    }
+
+    @Test
+    void readTimeout() throws Exception {
+        Channel<Integer> channel = new Channel<>();
+        assertThrows(TimeoutException.class, () -> channel.read(50, TimeUnit.MILLISECONDS));
+        assertFalse(channel.hasWaitingReader());
+
+        new Thread(() -> channel.write(1)).start();
+        assertEquals(1, channel.read(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void writeTimeout() throws Exception {
+        Channel<Integer> channel = new Channel<>(1);
+        channel.write(1, 50, TimeUnit.MILLISECONDS);
+        assertThrows(TimeoutException.class, () -> channel.write(2, 50, TimeUnit.MILLISECONDS));
+        assertFalse(channel.hasWaitingWriter());
+
+        assertEquals(1, channel.read());
+        assertThrows(TimeoutException.class, () -> channel.read(50, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void tryReadAndWrite() throws InterruptedException {
+        Channel<Integer> channel = new Channel<>(1);
+        assertFalse(channel.tryRead().isPresent());
+        assertTrue(channel.tryWrite(null));
+        assertFalse(channel.tryWrite(2));
+        ReadResult<Integer> result = channel.tryRead();
+        assertTrue(result.isPresent());
+        assertNull(result.get());
+
+        Channel<Integer> unbuffered = new Channel<>();
+        assertFalse(unbuffered.tryWrite(1));
+        Thread reader = new Thread(unbuffered::read);
+        reader.start();
+        while (!unbuffered.tryWrite(1))
+            TimeUnit.MILLISECONDS.sleep(1);
+        reader.join();
+
+        channel.close();
+        assertTrue(channel.tryRead().isClosed());
+        assertThrows(ChannelAlreadyClosedException.class, () -> channel.tryWrite(1));
+    }
+
+    @Test
+    void drainTo() {
+        Channel<Integer> channel = new Channel<>(2);
+        channel.write(0);
+        channel.write(1);
+        for (int i = 2; i < 5; i++) {
+            int finalI = i;
+            new Thread(() -> channel.write(finalI)).start();
+            //等待写者入队，保证顺序
+            while (channel.stats().waitingWriters() < i - 1)
+                Thread.onSpinWait();
+        }
+
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(3, channel.drainTo(drained, 3));
+        assertEquals(Arrays.asList(0, 1, 2), drained);
+        //剩下的写者已经补进了缓冲区
+        assertEquals(2, channel.drainTo(drained, 10));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), drained);
+        assertEquals(0, channel.drainTo(drained, 10));
+        assertFalse(channel.hasWaitingWriter());
+    }
+
+    @Test
+    void writeAll() throws InterruptedException {
+        Channel<Integer> channel = new Channel<>(4);
+        List<Integer> data = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            data.add(i);
+
+        List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+        Thread reader = new Thread(() -> {
+            Integer read;
+            while ((read = channel.read()) != null)
+                received.add(read);
+        });
+        reader.start();
+        channel.writeAll(data);
+        channel.close();
+        reader.join();
+        assertEquals(data, received);
+    }
+
+    /**
+     * 缓冲区里的数据还没交给等待的读者时，writeAll的数据不能插队
+     */
+    @Test
+    void writeAllAfterBufferedData() throws Exception {
+        Channel<Integer> channel = new Channel<>(4);
+        CompletableFuture<Integer> first = CompletableFuture.supplyAsync(channel::read);
+        while (channel.stats().waitingReaders() == 0)
+            Thread.onSpinWait();
+        //拿着锁，不加锁写入的写者停在唤醒读者之前
+        channel.lock();
+        try {
+            new Thread(() -> channel.write(1)).start();
+            while (channel.stats().buffered() == 0)
+                Thread.onSpinWait();
+            channel.writeAll(List.of(2));
+        } finally {
+            channel.unlock();
+        }
+        assertEquals(1, first.get(10, TimeUnit.SECONDS));
+        assertEquals(2, channel.read());
+    }
+
+    @RepeatedTest(5)
+    void intChannel() throws InterruptedException {
+        test(new IntChannel(), 100, 10, 0);
+        test(new IntChannel(4), 100, 10, 0);
+    }
+
+    @Test
+    void primitiveChannels() throws Exception {
+        LongChannel longs = new LongChannel(2);
+        longs.writeLong(Long.MAX_VALUE);
+        longs.write(-1L);
+        assertFalse(longs.tryWriteLong(0L));
+        assertEquals(Long.MAX_VALUE, longs.readLong());
+        assertEquals(-1L, longs.read());
+        assertThrows(TimeoutException.class, () -> longs.readLong(50, TimeUnit.MILLISECONDS));
+
+        DoubleChannel doubles = new DoubleChannel();
+        //断言都在测试线程里，写者的异常由get抛出
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> doubles.writeDouble(-0.5));
+        assertEquals(-0.5, doubles.readDouble());
+        writer.get(10, TimeUnit.SECONDS);
+        writer = CompletableFuture.runAsync(() -> doubles.writeDouble(Double.NaN));
+        assertEquals(Double.NaN, doubles.readDouble());
+        writer.get(10, TimeUnit.SECONDS);
+
+        IntChannel ints = new IntChannel(Channel.builder().bufferSize(1).fair(false));
+        ints.writeInt(Integer.MIN_VALUE);
+        ints.close();
+        assertEquals(Integer.MIN_VALUE, ints.readInt());
+        //原始类型没有null，关闭且取完之后抛异常，装箱的read仍返回null
+        assertThrows(ChannelAlreadyClosedException.class, ints::readInt);
+        assertNull(ints.read());
+        assertThrows(NullPointerException.class, () -> new IntChannel(1).write(null));
+    }
+
+    @Test
+    void byteChannel() throws InterruptedException {
+        //每条记录占4字节的长度头加内容，12字节的缓冲区写两条之后第三条的长度头会跨过末尾
+        ByteChannel channel = new ByteChannel(12);
+        ByteBuffer src = ByteBuffer.wrap(new byte[]{1, 2, 3});
+        channel.write(src);
+        assertEquals(0, src.position());
+        channel.write(ByteBuffer.allocate(0));
+        assertFalse(channel.tryWrite(ByteBuffer.allocate(1)));
+        assertThrows(IllegalArgumentException.class, () -> channel.write(ByteBuffer.allocate(9)));
+
+        ByteBuffer record = channel.read();
+        assertTrue(record.isReadOnly());
+        assertEquals(ByteBuffer.wrap(new byte[]{1, 2, 3}), record);
+        assertEquals(0, channel.read().remaining());
+
+        channel.write(ByteBuffer.wrap(new byte[]{4, 5, 6, 7, 8, 9}));
+        ByteBuffer dst = ByteBuffer.allocate(4);
+        assertEquals(6, channel.read(dst));
+        assertArrayEquals(new byte[]{4, 5, 6, 7}, dst.array());
+
+        //直接交给等待的读者时也要拷贝，写者返回之后改动自己的ByteBuffer不影响读者
+        ByteChannel unbuffered = new ByteChannel();
+        byte[] bytes = new byte[1000];
+        Arrays.fill(bytes, (byte) 1);
+        Thread writer = new Thread(() -> {
+            unbuffered.write(ByteBuffer.wrap(bytes));
+            Arrays.fill(bytes, (byte) 2);
+        });
+        writer.start();
+        record = unbuffered.read();
+        writer.join();
+        assertEquals(1000, record.remaining());
+        while (record.hasRemaining())
+            assertEquals(1, record.get());
+
+        unbuffered.close();
+        assertNull(unbuffered.read());
+        assertEquals(-1, unbuffered.read(dst));
+    }
+
+    @RepeatedTest(5)
+    void byteChannelConcurrent() throws InterruptedException {
+        ByteChannel channel = new ByteChannel(64);
+        int threadCnt = 4;
+        int testCnt = 1000;
+        AtomicIntegerArray res = new AtomicIntegerArray(threadCnt * testCnt);
+        CountDownLatch latch = new CountDownLatch(threadCnt * 2);
+        for (int i = 0; i < threadCnt; i++) {
+            int finalI = i;
+            new Thread(() -> {
+                ByteBuffer src = ByteBuffer.allocate(Integer.BYTES * 8);
+                for (int j = 0; j < testCnt; j++) {
+                    //长度不一的记录，内容重复写同一个数，用来检查有没有被撕裂
+                    src.clear();
+                    for (int k = 0; k <= j % 8; k++)
+                        src.putInt(finalI * testCnt + j);
+                    channel.write(src.flip());
+                }
+                latch.countDown();
+            }).start();
+            new Thread(() -> {
+                for (int j = 0; j < testCnt; j++) {
+                    ByteBuffer record = channel.read();
+                    int value = record.getInt();
+                    while (record.hasRemaining())
+                        assertEquals(value, record.getInt());
+                    assertEquals(0, res.getAndSet(value, 1));
+                }
+                latch.countDown();
+            }).start();
+        }
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        for (int i = 0; i < res.length(); i++)
+            assertEquals(1, res.get(i));
+    }
+
+    @Test
+    void mappedChannel(@TempDir Path dir) throws InterruptedException {
+        Path file = dir.resolve("chan");
+        MappedChannel<String> channel = new MappedChannel<>(file, 32, Serializer.utf8());
+        channel.write("hello");
+        channel.write("");
+        channel.write("world");
+        assertEquals("hello", channel.read());
+        assertThrows(IllegalArgumentException.class, () -> channel.write("more than 28 bytes long........"));
+        //同一时间只能被一个channel打开
+        assertThrows(IllegalStateException.class, () -> new MappedChannel<>(file, 32, Serializer.utf8()));
+
+        //模拟重启，重新打开同一个文件，接着读没读完的
+        channel.close();
+        assertFalse(channel.tryRead().isPresent());
+        MappedChannel<String> reopened = new MappedChannel<>(file, 32, Serializer.utf8());
+        assertEquals("", reopened.read());
+        assertEquals("world", reopened.read());
+        assertFalse(reopened.tryRead().isPresent());
+        reopened.close();
+        assertThrows(IllegalArgumentException.class,
+                () -> new MappedChannel<>(file, 64, Serializer.utf8()));
+        reopened = new MappedChannel<>(file, 32, Serializer.utf8());
+
+        //末尾放不下的记录跳到开头
+        reopened.write("0123456789");
+        reopened.write("abcdefghij");
+        assertEquals("0123456789", reopened.read());
+        reopened.write("ABCDEFGHIJ");
+        reopened.force();
+        reopened.close();
+        assertEquals(Arrays.asList("abcdefghij", "ABCDEFGHIJ"),
+                drain(new MappedChannel<>(file, 32, Serializer.utf8())));
+    }
+
+    /**
+     * 写头部时崩溃，最新的一份读写位置只写了一半，重新打开时用上一份
+     */
+    @Test
+    void mappedChannelTornHeader(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("chan");
+        MappedChannel<String> channel = new MappedChannel<>(file, 32, Serializer.utf8());
+        channel.write("a");
+        channel.write("b");
+        channel.close();
+        //初始化和两次写一共写了三次头部，最新的是第二份
+        try (FileChannel raw = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            raw.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, 7), 32 + 8);
+        }
+        assertEquals(List.of("a"), drain(new MappedChannel<>(file, 32, Serializer.utf8())));
+    }
+
+    /**
+     * 序列化失败时读写位置不变，包括需要跳到开头的记录
+     */
+    @Test
+    void mappedChannelSerializeFailure(@TempDir Path dir) {
+        Serializer<String> serializer = failOnBad();
+        Path file = dir.resolve("chan");
+        MappedChannel<String> channel = new MappedChannel<>(file, 32, serializer);
+        channel.write("0123456789");
+        channel.write("abcdefghij");
+        assertEquals("0123456789", channel.read());
+        assertThrows(IllegalStateException.class, () -> channel.write("bad......."));
+        channel.write("xy");
+        channel.close();
+        assertEquals(Arrays.asList("abcdefghij", "xy"), drain(new MappedChannel<>(file, 32, serializer)));
+    }
+
+    /**
+     * 读者替等待的写者把数据放进缓冲区时序列化失败，失败交给那个写者，读者不受影响
+     */
+    @Test
+    void mappedChannelTransferFailure(@TempDir Path dir) throws Exception {
+        MappedChannel<String> channel = new MappedChannel<>(dir.resolve("chan"), 32, failOnBad());
+        channel.write("0123456789");
+        channel.write("abcdefghij");
+        CompletableFuture<Void> bad = CompletableFuture.runAsync(() -> channel.write("bad"));
+        while (!channel.hasWaitingWriter())
+            Thread.onSpinWait();
+        assertEquals("0123456789", channel.read());
+        ExecutionException e = assertThrows(ExecutionException.class, () -> bad.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+        assertFalse(channel.hasWaitingWriter());
+        channel.write("xy");
+        assertEquals("abcdefghij", channel.read());
+        assertEquals("xy", channel.read());
+        channel.close();
+    }
+
+    /**
+     * 以bad开头的字符串序列化时失败
+     */
+    private static Serializer<String> failOnBad() {
+        Serializer<String> utf8 = Serializer.utf8();
+        return new Serializer<String>() {
+            @Override
+            public int size(String value) {
+                return utf8.size(value);
+            }
+
+            @Override
+            public void serialize(String value, ByteBuffer out) {
+                if (value.startsWith("bad"))
+                    throw new IllegalStateException(value);
+                utf8.serialize(value, out);
+            }
+
+            @Override
+            public String deserialize(ByteBuffer in) {
+                return utf8.deserialize(in);
+            }
+        };
+    }
+
+    private static List<String> drain(Channel<String> channel) {
+        List<String> list = new ArrayList<>();
+        channel.drainTo(list, Integer.MAX_VALUE);
+        return list;
+    }
+
+    @RepeatedTest(5)
+    void mappedChannelConcurrent(@TempDir Path dir) throws InterruptedException {
+        Serializer<Integer> serializer = new Serializer<Integer>() {
+            @Override
+            public int size(Integer value) {
+                return Integer.BYTES;
+            }
+
+            @Override
+            public void serialize(Integer value, ByteBuffer out) {
+                out.putInt(value);
+            }
+
+            @Override
+            public Integer deserialize(ByteBuffer in) {
+                return in.getInt();
+            }
+        };
+        test(new MappedChannel<>(dir.resolve("chan"), 60, serializer), 100, 10, 0);
+    }
+
+    @RepeatedTest(5)
+    void elasticBuffer() throws InterruptedException {
+        test(Channel.<Integer>builder().bufferSize(100).elastic(true).build(), 100, 10, 0);
+        test(new IntChannel(Channel.builder().unbounded()), 100, 10, 0);
+    }
+
+    @RepeatedTest(5)
+    void spsc() throws InterruptedException {
+        test(Channel.<Integer>builder().bufferSize(1).spsc(true).build(), 1000, 1, 0);
+        test(Channel.<Integer>builder().bufferSize(16).spsc(true).fair(false).build(), 1000, 1, 0);
+        test(new IntChannel(Channel.builder().bufferSize(16).spsc(true)), 1000, 1, 0);
+    }
+
+    @Test
+    void unboundedBuffer() {
+        Channel<Integer> channel = Channel.<Integer>builder().unbounded().build();
+        int n = ChunkedBuffer.CHUNK_SIZE * 10 + 1;
+        for (int i = 0; i < n; i++)
+            assertTrue(channel.tryWrite(i));
+        for (int i = 0; i < n; i++)
+            assertEquals(i, channel.read());
+        assertFalse(channel.tryRead().isPresent());
+        //读空之后还能接着用
+        channel.write(null);
+        assertNull(channel.tryRead().get());
+
+        //bufferSize是上限
+        Channel<Integer> capped = Channel.<Integer>builder().bufferSize(40).elastic(true).build();
+        for (int i = 0; i < 40; i++)
+            assertTrue(capped.tryWrite(i));
+        assertFalse(capped.tryWrite(40));
+        assertEquals(0, capped.read());
+        assertTrue(capped.tryWrite(40));
+    }
+
+    @RepeatedTest(5)
+    void broadcast() throws InterruptedException {
+        BroadcastChannel<Integer> broadcast = new BroadcastChannel<>(4);
+        int subscriberCnt = 4;
+        int testCnt = 10000;
+        CountDownLatch latch = new CountDownLatch(subscriberCnt);
+        AtomicIntegerArray res = new AtomicIntegerArray(subscriberCnt);
+        for (int i = 0; i < subscriberCnt; i++) {
+            int finalI = i;
+            Channel<Integer> subscription = broadcast.subscribe();
+            new Thread(() -> {
+                //每个订阅者都按顺序收到全部数据，关闭之后读到null
+                Integer data;
+                int expected = 0;
+                while ((data = subscription.read()) != null)
+                    if (data == expected)
+                        expected++;
+                res.set(finalI, expected);
+                latch.countDown();
+            }).start();
+        }
+        for (int i = 0; i < testCnt; i++)
+            broadcast.write(i);
+        broadcast.close();
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        for (int i = 0; i < subscriberCnt; i++)
+            assertEquals(testCnt, res.get(i));
+    }
+
+    /**
+     * 所有订阅者都读过的数据不再被缓冲区引用
+     */
+    @Test
+    void broadcastClearsReadSlots() throws InterruptedException {
+        BroadcastChannel<Object> broadcast = new BroadcastChannel<>(4);
+        Channel<Object> first = broadcast.subscribe();
+        Channel<Object> second = broadcast.subscribe();
+        Object data = new Object();
+        WeakReference<Object> ref = new WeakReference<>(data);
+        broadcast.write(data);
+        data = null;
+        assertNotNull(first.read());
+        assertNotNull(second.read());
+        broadcast.write(1);
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertNull(ref.get());
+        assertEquals(1, first.read());
+    }
+
+    @Test
+    void broadcastSubscription() throws InterruptedException {
+        BroadcastChannel<Integer> broadcast = new BroadcastChannel<>(2);
+        //没有订阅者时直接丢掉
+        assertTrue(broadcast.tryWrite(0));
+        Channel<Integer> fast = broadcast.subscribe();
+        Channel<Integer> slow = broadcast.subscribe();
+        broadcast.write(1);
+        broadcast.write(2);
+        assertFalse(broadcast.tryWrite(3));
+        assertEquals(1, fast.read());
+        assertEquals(2, fast.read());
+        //最慢的订阅者拖住写者，取消订阅之后放行
+        assertFalse(broadcast.tryWrite(3));
+        Thread writer = new Thread(() -> broadcast.write(3));
+        writer.start();
+        TimeUnit.MILLISECONDS.sleep(50);
+        assertTrue(writer.isAlive());
+        slow.close();
+        writer.join();
+        assertEquals(3, fast.read());
+
+        assertThrows(UnsupportedOperationException.class, () -> fast.write(4));
+        broadcast.close();
+        assertNull(fast.read());
+        assertThrows(ChannelAlreadyClosedException.class, broadcast::subscribe);
+        assertThrows(ChannelAlreadyClosedException.class, () -> broadcast.write(4));
+    }
+
+    @Test
+    void stats() throws InterruptedException {
+        Channel<Integer> channel = Channel.<Integer>builder().bufferSize(2).metrics(true).build();
+        channel.write(1);
+        channel.write(2);
+        assertEquals(1, channel.read());
+        ChannelStats stats = channel.stats();
+        assertTrue(stats.isEnabled());
+        assertEquals(2, stats.written());
+        assertEquals(1, stats.read());
+        assertEquals(1, stats.buffered());
+
+        Thread reader = new Thread(() -> {
+            channel.read();
+            channel.read();
+        });
+        reader.start();
+        while (channel.stats().waitingReaders() == 0)
+            TimeUnit.MILLISECONDS.sleep(10);
+        channel.write(3);
+        reader.join();
+        stats = channel.stats();
+        assertEquals(3, stats.read());
+        assertEquals(3, stats.written());
+        assertTrue(stats.parks() > 0);
+        assertEquals(0, stats.buffered());
+
+        //没有开启时只有缓冲区和等待队列的长度
+        Channel<Integer> plain = new Channel<>(2);
+        plain.write(1);
+        assertFalse(plain.stats().isEnabled());
+        assertEquals(0, plain.stats().written());
+        assertEquals(1, plain.stats().buffered());
+    }
+
+    @Test
+    void compareToIsTotalOrder() {
+        List<Channel<Integer>> channels = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++)
+            channels.add(new Channel<>());
+        for (int i = 1; i < channels.size(); i++) {
+            assertTrue(channels.get(i - 1).compareTo(channels.get(i)) < 0);
+            assertTrue(channels.get(i).compareTo(channels.get(i - 1)) > 0);
+        }
+        assertEquals(0, channels.get(0).compareTo(channels.get(0)));
+    }
+
+    @Test
+    void readAsync() throws Exception {
+        Channel<Integer> channel = new Channel<>();
+        CompletableFuture<Integer> future = channel.readAsync();
+        assertFalse(future.isDone());
+        channel.write(1);
+        assertEquals(1, future.get(1, TimeUnit.SECONDS));
+
+        //读到null和通道关闭区分开
+        Channel<Integer> buffered = new Channel<>(1);
+        buffered.write(null);
+        assertNull(buffered.readAsync().get(1, TimeUnit.SECONDS));
+        CompletableFuture<Integer> closed = buffered.readAsync();
+        buffered.close();
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> closed.get(1, TimeUnit.SECONDS));
+        assertTrue(ex.getCause() instanceof ChannelAlreadyClosedException);
+
+        //取消之后节点不再留在队列里
+        CompletableFuture<Integer> cancelled = channel.readAsync();
+        cancelled.cancel(false);
+        assertThrows(TimeoutException.class, () -> channel.write(2, 50, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void writeAsync() throws Exception {
+        Channel<Integer> channel = new Channel<>();
+        CompletableFuture<Void> future = channel.writeAsync(1);
+        assertFalse(future.isDone());
+        assertEquals(1, channel.read());
+        future.get(1, TimeUnit.SECONDS);
+
+        CompletableFuture<Void> closed = channel.writeAsync(2);
+        channel.close();
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> closed.get(1, TimeUnit.SECONDS));
+        assertTrue(ex.getCause() instanceof ChannelAlreadyClosedException);
+        assertTrue(channel.writeAsync(3).isCompletedExceptionally());
+    }
+
+    /**
+     * 异步的读写互相配对，不占用任何线程
+     */
+    @Test
+    void asyncPingPong() throws Exception {
+        Channel<Integer> channel = new Channel<>();
+        int n = 10_000;
+        List<CompletableFuture<Integer>> reads = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            reads.add(channel.readAsync());
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            writes.add(channel.writeAsync(i));
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        long sum = 0;
+        for (CompletableFuture<Integer> read : reads)
+            sum += read.get(10, TimeUnit.SECONDS);
+        assertEquals((long) n * (n - 1) / 2, sum);
+    }
+
+    @Test
+    void byteChannelReadAsync() throws Exception {
+        ByteChannel channel = new ByteChannel(64);
+        CompletableFuture<ByteBuffer> first = channel.readAsync();
+        channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        channel.write(ByteBuffer.wrap(new byte[]{4, 5}));
+        CompletableFuture<ByteBuffer> second = channel.readAsync();
+        //每条记录有自己的暂存区，之后的读不会覆盖
+        channel.write(ByteBuffer.wrap(new byte[]{6}));
+        channel.read();
+        assertEquals(ByteBuffer.wrap(new byte[]{1, 2, 3}), first.get(1, TimeUnit.SECONDS));
+        assertEquals(ByteBuffer.wrap(new byte[]{4, 5}), second.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void readBufferedAfterClose() {
+        Channel<Integer> channel = new Channel<>(3);
+        channel.write(1);
+        channel.write(null);
+        channel.write(3);
+        channel.close();
+        assertThrows(ChannelAlreadyClosedException.class, () -> channel.write(4));
+        assertEquals(1, channel.read());
+        assertNull(channel.read());
+        assertEquals(3, channel.read());
+        assertNull(channel.read());
+    }
+
     @Test
     void closeOnWaitingSend() throws InterruptedException {
         Channel<Integer> channel = new Channel<>();
@@ -106,4 +771,125 @@ public class ChannelTest {
         channel.close();
         assertThrows(ChannelAlreadyClosedException.class, channel::close);
     }
+
+    /**
+     * 和不加锁的写并发关闭，写成功的数据都要被读到，关闭之后不能再写成功
+     */
+    @RepeatedTest(200)
+    void closeRacingWriters() throws Exception {
+        Channel<Integer> channel = new Channel<>(4);
+        AtomicInteger written = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(2);
+        Thread[] writers = new Thread[2];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Thread(() -> {
+                started.countDown();
+                try {
+                    for (; ; ) {
+                        channel.write(1);
+                        written.incrementAndGet();
+                    }
+                } catch (ChannelAlreadyClosedException ignored) {
+                }
+            });
+            writers[i].start();
+        }
+        CompletableFuture<Long> read = CompletableFuture.supplyAsync(() -> channel.stream().count());
+        started.await();
+        channel.close();
+        for (Thread writer : writers)
+            writer.join();
+        assertEquals(written.get(), read.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void iterate() throws InterruptedException {
+        Channel<Integer> channel = new Channel<>(4);
+        Thread writer = new Thread(() -> {
+            channel.write(1);
+            channel.write(null);
+            channel.write(2);
+            channel.close();
+        });
+        writer.start();
+        //null是数据，只有关闭才结束遍历
+        List<Integer> list = new ArrayList<>();
+        for (Integer i : channel)
+            list.add(i);
+        assertEquals(Arrays.asList(1, null, 2), list);
+        writer.join();
+        assertFalse(channel.iterator().hasNext());
+    }
+
+    @Test
+    void stream() throws InterruptedException {
+        Channel<Integer> channel = new Channel<>(16);
+        int testCnt = 100000;
+        Thread writer = new Thread(() -> {
+            for (int i = 1; i <= testCnt; i++)
+                channel.write(i);
+            channel.close();
+        });
+        writer.start();
+        //提前结束的流不会多拿数据
+        assertEquals(Arrays.asList(1, 2, 3), channel.stream().limit(3).toList());
+        assertEquals((long) testCnt * (testCnt + 1) / 2 - 6,
+                channel.stream().mapToLong(Integer::longValue).sum());
+        writer.join();
+
+        ByteChannel bytes = new ByteChannel(64);
+        bytes.write(ByteBuffer.wrap(new byte[]{1, 2}));
+        bytes.write(ByteBuffer.wrap(new byte[]{3}));
+        bytes.close();
+        assertEquals(Arrays.asList(ByteBuffer.wrap(new byte[]{1, 2}), ByteBuffer.wrap(new byte[]{3})),
+                bytes.stream().toList());
+    }
+
+    @RepeatedTest(5)
+    void parallelStream() throws InterruptedException {
+        Channel<Integer> channel = new Channel<>(64);
+        int testCnt = 100000;
+        int writerCnt = 4;
+        Thread[] writers = new Thread[writerCnt];
+        for (int i = 0; i < writerCnt; i++) {
+            int base = i * testCnt;
+            writers[i] = new Thread(() -> {
+                for (int j = 0; j < testCnt; j++)
+                    channel.write(base + j);
+            });
+            writers[i].start();
+        }
+        Thread closer = new Thread(() -> {
+            try {
+                for (Thread writer : writers)
+                    writer.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            channel.close();
+        });
+        closer.start();
+
+        int[] seen = channel.stream().parallel().mapToInt(Integer::intValue).toArray();
+        assertEquals(writerCnt * testCnt, seen.length);
+        Arrays.sort(seen);
+        for (int i = 0; i < seen.length; i++)
+            assertEquals(i, seen[i]);
+        closer.join();
+    }
+
+    /**
+     * executor拒绝时回调换到别的线程执行，不在写者持有channel的锁时执行
+     */
+    @Test
+    void readAsyncRejectedExecutor() throws Exception {
+        Channel<Integer> channel = new Channel<>();
+        CompletableFuture<Integer> future = channel.readAsync(task -> {
+            throw new RejectedExecutionException();
+        });
+        CompletableFuture<Thread> completedOn = future.thenApply(i -> Thread.currentThread());
+        channel.write(1);
+        assertEquals(1, future.get(1, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), completedOn.get(1, TimeUnit.SECONDS));
+    }
 }
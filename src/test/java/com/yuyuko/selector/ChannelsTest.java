@@ -0,0 +1,513 @@
+package com.yuyuko.selector;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.yuyuko.selector.SelectionKey.read;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChannelsTest {
+    /**
+     * go的经典例子，十万个虚拟线程首尾相连，每个都阻塞在读上。
+     * 若阻塞时占住了载体线程，载体线程用完之后就会死锁
+     */
+    @Test
+    void daisyChain() {
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            int n = 100_000;
+            Channel<Integer> leftmost = new Channel<>();
+            Channel<Integer> left = leftmost;
+            for (int i = 0; i < n; i++) {
+                Channel<Integer> from = left;
+                Channel<Integer> to = new Channel<>();
+                Channels.go(() -> to.write(from.read() + 1));
+                left = to;
+            }
+            Channel<Integer> rightmost = left;
+            Channels.go(() -> leftmost.write(0));
+            assertEquals(n, rightmost.read());
+        });
+    }
+
+    @Test
+    void selectOnVirtualThreads() {
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            int n = 10_000;
+            Channel<Integer> chan1 = new Channel<>();
+            Channel<Integer> chan2 = new Channel<>(16);
+            AtomicInteger sum = new AtomicInteger();
+            CountDownLatch latch = new CountDownLatch(n);
+            for (int i = 0; i < n; i++) {
+                Channels.go(() -> {
+                    SelectionKey<?> key = Selector.open()
+                            .register(chan1, read())
+                            .register(chan2, read())
+                            .select();
+                    sum.addAndGet((Integer) key.data());
+                    latch.countDown();
+                });
+            }
+            for (int i = 0; i < n; i++) {
+                if (i % 2 == 0)
+                    chan1.write(1);
+                else
+                    chan2.write(1);
+            }
+            latch.await();
+            assertEquals(n, sum.get());
+        });
+    }
+
+    @Test
+    void registerMBean() throws Exception {
+        Channel<Integer> channel = Channel.<Integer>builder().bufferSize(4).metrics(true).build();
+        channel.write(1);
+        ObjectName name = Channels.registerMBean("test", channel);
+        try {
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Written"));
+            assertEquals(1, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Buffered"));
+        } finally {
+            Channels.unregisterMBean(name);
+        }
+        assertThrows(IllegalArgumentException.class, () -> Channels.registerMBean("plain", new Channel<>()));
+
+        Selector selector = Selector.open().register(channel, read()).metrics(true);
+        selector.select();
+        name = Channels.registerMBean("test", selector);
+        try {
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Selects"));
+        } finally {
+            Channels.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    void publisher() {
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            int n = 10_000;
+            Channel<Integer> channel = new Channel<>(16);
+            List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch completed = new CountDownLatch(1);
+            Channels.publisher(channel).subscribe(new Flow.Subscriber<>() {
+                private Flow.Subscription subscription;
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    subscription.request(10);
+                }
+
+                @Override
+                public void onNext(Integer item) {
+                    received.add(item);
+                    if (received.size() % 10 == 0)
+                        subscription.request(10);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    fail(throwable);
+                }
+
+                @Override
+                public void onComplete() {
+                    completed.countDown();
+                }
+            });
+            for (int i = 0; i < n; i++)
+                channel.write(i);
+            channel.close();
+            completed.await();
+            assertEquals(n, received.size());
+            for (int i = 0; i < n; i++)
+                assertEquals(i, received.get(i));
+        });
+    }
+
+    /**
+     * 没有需求时不读，数据留在channel里
+     */
+    @Test
+    void publisherRespectsDemand() throws InterruptedException {
+        Channel<Integer> channel = new Channel<>(4);
+        List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch delivered = new CountDownLatch(2);
+        Flow.Subscription[] subscription = new Flow.Subscription[1];
+        Channels.publisher(channel).subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription[0] = s;
+                s.request(2);
+            }
+
+            @Override
+            public void onNext(Integer item) {
+                received.add(item);
+                delivered.countDown();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        for (int i = 0; i < 4; i++)
+            channel.write(i);
+        assertTrue(delivered.await(10, TimeUnit.SECONDS));
+        assertEquals(List.of(0, 1), received);
+        assertEquals(2, channel.stats().buffered());
+        assertFalse(channel.hasWaitingReader());
+
+        subscription[0].cancel();
+        assertEquals(2, channel.stats().buffered());
+        assertFalse(channel.hasWaitingReader());
+    }
+
+    /**
+     * 读到null时onError，之后不再有信号
+     */
+    @Test
+    void publisherRejectsNull() throws InterruptedException {
+        Channel<Integer> channel = new Channel<>(4);
+        channel.write(1);
+        channel.write(null);
+        channel.write(3);
+        TerminalSubscriber subscriber = new TerminalSubscriber(Long.MAX_VALUE);
+        Channels.publisher(channel).subscribe(subscriber);
+        assertTrue(subscriber.terminated.await(10, TimeUnit.SECONDS));
+        assertTrue(subscriber.error instanceof NullPointerException);
+        assertEquals(List.of(1), subscriber.received);
+    }
+
+    /**
+     * request的参数不是正数时onError只发一次，也不会和正在等待的读同时发出信号
+     */
+    @Test
+    void publisherRejectsNonPositiveRequest() throws InterruptedException {
+        Channel<Integer> channel = new Channel<>(4);
+        TerminalSubscriber subscriber = new TerminalSubscriber(1);
+        Channels.publisher(channel).subscribe(subscriber);
+        while (!channel.hasWaitingReader())
+            Thread.onSpinWait();
+        subscriber.subscription.request(0);
+        subscriber.subscription.request(-1);
+        assertTrue(subscriber.terminated.await(10, TimeUnit.SECONDS));
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertEquals(1, subscriber.signals.get());
+        channel.write(1);
+        assertTrue(subscriber.received.isEmpty());
+    }
+
+    private static final class TerminalSubscriber implements Flow.Subscriber<Integer> {
+        private final long initialRequest;
+
+        private final List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+
+        private final CountDownLatch terminated = new CountDownLatch(1);
+
+        private final AtomicInteger signals = new AtomicInteger();
+
+        private volatile Flow.Subscription subscription;
+
+        private volatile Throwable error;
+
+        private TerminalSubscriber(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(initialRequest);
+        }
+
+        @Override
+        public void onNext(Integer item) {
+            received.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            signals.incrementAndGet();
+            terminated.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            signals.incrementAndGet();
+            terminated.countDown();
+        }
+    }
+
+    @Test
+    void subscriber() {
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            int n = 10_000;
+            Channel<Integer> channel = new Channel<>(16);
+            //发布者由写完的任务关闭
+            SubmissionPublisher<Integer> publisher = new SubmissionPublisher<>();
+            publisher.subscribe(Channels.subscriber(channel));
+            Channels.go(() -> {
+                for (int i = 0; i < n; i++)
+                    publisher.submit(i);
+                publisher.close();
+            });
+            for (int i = 0; i < n; i++)
+                assertEquals(i, channel.read());
+            //上游结束之后channel被关闭
+            assertNull(channel.read());
+            assertTrue(channel.isClosed());
+        });
+    }
+
+    @Test
+    void pipeline() {
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            Channel<Integer> source = new Channel<>(8);
+            Channels.go(() -> {
+                for (int i = 0; i < 1000; i++)
+                    source.write(i);
+                source.close();
+            });
+            Channel<String> out = Pipeline.from(source)
+                    .filter(i -> i % 2 == 0)
+                    .map(i -> i * 3)
+                    .map(String::valueOf)
+                    .channel();
+            List<String> list = new ArrayList<>();
+            for (String s : out)
+                list.add(s);
+            assertEquals(500, list.size());
+            for (int i = 0; i < 500; i++)
+                assertEquals(String.valueOf(i * 6), list.get(i));
+            assertTrue(out.isClosed());
+
+            //没有待执行的map和filter时不建新的channel
+            Pipeline<Integer> pipeline = Pipeline.from(source);
+            assertSame(source, pipeline.channel());
+            assertThrows(IllegalStateException.class, () -> pipeline.map(i -> i));
+        });
+    }
+
+    @Test
+    void pipelineMergeAndPartition() {
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            List<Channel<Integer>> sources = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                Channel<Integer> source = new Channel<>(4);
+                int base = i * 1000;
+                Channels.go(() -> {
+                    for (int j = 0; j < 1000; j++)
+                        source.write(base + j);
+                    source.close();
+                });
+                sources.add(source);
+            }
+            List<Pipeline<Integer>> partitions = Pipeline.from(sources.get(0))
+                    .merge(sources.get(1), sources.get(2))
+                    .partition(i -> i % 4, 4);
+            List<Channel<Integer>> outs = new ArrayList<>();
+            for (Pipeline<Integer> partition : partitions)
+                outs.add(partition.channel());
+
+            List<List<Integer>> lists = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch done = new CountDownLatch(4);
+            for (int i = 0; i < 4; i++) {
+                Channel<Integer> out = outs.get(i);
+                Channels.go(() -> {
+                    List<Integer> list = new ArrayList<>();
+                    out.forEach(list::add);
+                    lists.add(list);
+                    done.countDown();
+                });
+            }
+            done.await();
+            int total = 0;
+            for (List<Integer> list : lists) {
+                total += list.size();
+                int key = list.get(0) % 4;
+                int[] last = {-1, -1, -1};
+                for (int i : list) {
+                    //同一个key进同一个分区，同一个输入的数据保持顺序
+                    assertEquals(key, i % 4);
+                    assertTrue(i > last[i / 1000]);
+                    last[i / 1000] = i;
+                }
+            }
+            assertEquals(3000, total);
+        });
+    }
+
+    @Test
+    void pipelineBatch() {
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            Channel<Integer> source = new Channel<>(16);
+            for (int i = 0; i < 10; i++)
+                source.write(i);
+            Channel<List<Integer>> out = Pipeline.from(source)
+                    .filter(i -> i != 5)
+                    .batch(4, Duration.ofMillis(50))
+                    .channel();
+            assertEquals(List.of(0, 1, 2, 3), out.read());
+            assertEquals(List.of(4, 6, 7, 8), out.read());
+            //攒不够，等linger之后发出去
+            assertEquals(List.of(9), out.read());
+            source.write(10);
+            source.close();
+            assertEquals(List.of(10), out.read());
+            assertNull(out.read());
+            assertTrue(out.isClosed());
+        });
+    }
+
+    @Test
+    void pipelineWorkerPool() {
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            Channel<Integer> source = new Channel<>(8);
+            Channels.go(() -> {
+                for (int i = 0; i < 1000; i++)
+                    source.write(i);
+                source.close();
+            });
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger maxRunning = new AtomicInteger();
+            Channel<Integer> out = Pipeline.from(source)
+                    .workerPool(4, i -> {
+                        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        Thread.yield();
+                        running.decrementAndGet();
+                        return i * 2;
+                    })
+                    .channel();
+            long sum = 0;
+            int count = 0;
+            for (int i : out) {
+                sum += i;
+                count++;
+            }
+            assertEquals(1000, count);
+            assertEquals(999L * 1000, sum);
+            assertTrue(maxRunning.get() <= 4);
+        });
+    }
+
+    /**
+     * 最下游关闭之后，流水线自己建的channel逐级关闭，上游的阶段都停下，from传入的channel不关闭
+     */
+    @Test
+    void pipelineDownstreamClose() {
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            Channel<Integer> source = new Channel<>(1);
+            Pipeline<Integer> first = Pipeline.from(source).workerPool(1, i -> i + 1);
+            Channel<Integer> out = first.bufferSize(0).workerPool(1, i -> i * 2).channel();
+            source.write(1);
+            assertEquals(4, out.read());
+            out.close();
+            source.write(2);
+            source.write(3);
+            //两个阶段都停下之后就没有人读source了
+            while (source.hasWaitingWriter() || source.tryWrite(4))
+                Thread.sleep(10);
+            assertFalse(source.isClosed());
+        });
+    }
+
+    @Test
+    void after() throws Exception {
+        long start = System.nanoTime();
+        Channel<Instant> timer = Channels.after(Duration.ofMillis(50));
+        assertNotNull(timer.read(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        //只到期一次
+        assertThrows(TimeoutException.class, () -> timer.read(100, TimeUnit.MILLISECONDS));
+
+        //关闭即取消
+        Channel<Instant> cancelled = Channels.after(Duration.ofMillis(20));
+        cancelled.close();
+        Thread.sleep(50);
+        assertTrue(cancelled.tryRead().isClosed());
+
+        assertNotNull(Channels.after(Duration.ZERO).read(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void tick() throws Exception {
+        Channel<Instant> ticker = Channels.tick(Duration.ofMillis(10));
+        Instant last = ticker.read(5, TimeUnit.SECONDS);
+        for (int i = 0; i < 5; i++) {
+            Instant now = ticker.read(5, TimeUnit.SECONDS);
+            assertFalse(now.isBefore(last));
+            last = now;
+        }
+        ticker.close();
+        Thread.sleep(30);
+        assertTrue(ticker.tryRead().isClosed());
+
+        //读得慢时只留一个，错过的丢掉
+        Channel<Instant> slow = Channels.tick(Duration.ofMillis(100));
+        Thread.sleep(350);
+        List<Instant> list = new ArrayList<>();
+        assertEquals(1, slow.drainTo(list, 10));
+        slow.close();
+
+        assertThrows(IllegalArgumentException.class, () -> Channels.tick(Duration.ZERO));
+    }
+
+    @Test
+    void timerIsReadOnly() {
+        Channel<Instant> timer = Channels.after(Duration.ofHours(1));
+        assertThrows(UnsupportedOperationException.class, () -> timer.write(Instant.now()));
+        assertThrows(UnsupportedOperationException.class, () -> timer.tryWrite(Instant.now()));
+        assertThrows(UnsupportedOperationException.class, () -> timer.writeAsync(Instant.now()));
+        assertThrows(UnsupportedOperationException.class, () -> timer.writeAll(List.of(Instant.now())));
+        assertThrows(IllegalArgumentException.class,
+                () -> Selector.open().register(timer, SelectionKey.write(Instant.now())));
+        timer.close();
+    }
+
+    /**
+     * 上万个select各自带一个超时channel，只靠时间轮的一个线程
+     */
+    @Test
+    void selectTimeouts() {
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            int n = 20_000;
+            Channel<Integer> never = new Channel<>();
+            AtomicInteger timedOut = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(n);
+            for (int i = 0; i < n; i++) {
+                Duration timeout = Duration.ofMillis(10 + i % 200);
+                Channels.go(() -> {
+                    Channel<Instant> timer = Channels.after(timeout);
+                    SelectionKey<?> key = Selector.open()
+                            .register(never, read())
+                            .register(timer, read())
+                            .select();
+                    if (key.channel() == timer)
+                        timedOut.incrementAndGet();
+                    done.countDown();
+                });
+            }
+            done.await();
+            assertEquals(n, timedOut.get());
+        });
+    }
+}
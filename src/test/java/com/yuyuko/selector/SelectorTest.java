@@ -4,10 +4,14 @@ import org.junit.Rule;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.RepeatedTest;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.rules.Timeout;
 
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -29,7 +33,7 @@ public class SelectorTest {
         new Thread(chan::close).start();
         if (sleep)
             TimeUnit.MILLISECONDS.sleep(10);
-        SelectionKey key = Selector.open()
+        SelectionKey<?> key = Selector.open()
                 .register(chan, read())
                 .select();
         assertNull(key.data());
@@ -57,22 +61,15 @@ public class SelectorTest {
     @RepeatedTest(100)
     void testSelectorInSelectorDone() throws InterruptedException {
         assertTimeoutPreemptively(Duration.ofMillis(500),()-> {
-            Channel<Object> chan1 = new Channel<>();
+            Channel<Instant> chan1 = Channels.tick(Duration.ofMillis(1));
             Channel<Object> chan2 = new Channel<>();
             Channel<Object> chan3 = new Channel<>();
             int testCnt = 5000;
             CountDownLatch latch = new CountDownLatch(2);
-            new Timer()
-                    .scheduleAtFixedRate(new TimerTask() {
-                        @Override
-                        public void run() {
-                            chan1.write(null);
-                        }
-                    }, 0, 1);
             new Thread(() -> {
                 for (int i = 0; i < testCnt; ++i) {
                     int finalI = i;
-                    SelectionKey key = Selector.open()
+                    SelectionKey<?> key = Selector.open()
                             .register(chan1, read())
                             .register(chan2, read())
                             .select();
@@ -93,6 +90,7 @@ public class SelectorTest {
                 latch.countDown();
             }).start();
             latch.await();
+            chan1.close();
         });
     }
 
@@ -169,6 +167,392 @@ public class SelectorTest {
         selectWithNChan(10, 10, 50, 5, 5, 300, true);
     }
 
+    @RepeatedTest(10)
+    void selectReadOnBufferedChan() throws InterruptedException {
+        selectReadOnBufferedChan(1);
+        selectReadOnBufferedChan(16);
+    }
+
+    void selectReadOnBufferedChan(int bufferSize) throws InterruptedException {
+        int chanCnt = 4;
+        int testPerChan = 1000;
+        List<Channel<Integer>> chans = new ArrayList<>();
+        for (int i = 0; i < chanCnt; i++) {
+            Channel<Integer> chan = new Channel<>(bufferSize);
+            chans.add(chan);
+            int base = i * testPerChan;
+            new Thread(() -> {
+                for (int j = 0; j < testPerChan; j++)
+                    chan.write(base + j);
+            }).start();
+        }
+
+        boolean[] received = new boolean[chanCnt * testPerChan];
+        for (int i = 0; i < received.length; i++) {
+            Selector selector = Selector.open();
+            for (Channel<Integer> chan : chans)
+                selector.register(chan, read());
+            SelectionKey<?> key = selector.select();
+            int data = (Integer) key.data();
+            assertFalse(received[data]);
+            received[data] = true;
+        }
+    }
+
+    @RepeatedTest(10)
+    void selectWriteOnBufferedChan() throws InterruptedException {
+        selectWriteOnBufferedChan(1);
+        selectWriteOnBufferedChan(16);
+    }
+
+    void selectWriteOnBufferedChan(int bufferSize) throws InterruptedException {
+        int chanCnt = 4;
+        int testCnt = 4000;
+        List<Channel<Integer>> chans = new ArrayList<>();
+        AtomicInteger receivedCnt = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(chanCnt);
+        for (int i = 0; i < chanCnt; i++) {
+            Channel<Integer> chan = new Channel<>(bufferSize);
+            chans.add(chan);
+            new Thread(() -> {
+                while (chan.read() != null)
+                    receivedCnt.incrementAndGet();
+                latch.countDown();
+            }).start();
+        }
+
+        for (int i = 0; i < testCnt; i++) {
+            Selector selector = Selector.open();
+            for (Channel<Integer> chan : chans)
+                selector.register(chan, write(i));
+            selector.select();
+        }
+        for (Channel<Integer> chan : chans)
+            chan.close();
+        latch.await();
+        assertEquals(testCnt, receivedCnt.get());
+    }
+
+    @RepeatedTest(10)
+    void reuseSelector() throws InterruptedException {
+        Channel<Integer> chan1 = new Channel<>();
+        Channel<Integer> chan2 = new Channel<>(2);
+        int testCnt = 1000;
+        new Thread(() -> {
+            for (int i = 0; i < testCnt; i++)
+                chan1.write(i);
+        }).start();
+        new Thread(() -> {
+            for (int i = 0; i < testCnt; i++)
+                chan2.write(testCnt + i);
+        }).start();
+
+        Selector selector = Selector.open()
+                .register(chan1, read())
+                .register(chan2, read());
+        boolean[] received = new boolean[testCnt * 2];
+        for (int i = 0; i < received.length; i++) {
+            int data = (Integer) selector.select().data();
+            assertFalse(received[data]);
+            received[data] = true;
+        }
+    }
+
+    @Test
+    void removeLosingNodes() throws InterruptedException {
+        List<Channel<Integer>> chans = new ArrayList<>();
+        Selector selector = Selector.open();
+        for (int i = 0; i < 50; i++) {
+            Channel<Integer> chan = new Channel<>();
+            chans.add(chan);
+            selector.register(chan, read());
+        }
+        for (int i = 0; i < 100; i++) {
+            Channel<Integer> chan = chans.get(i % chans.size());
+            new Thread(() -> {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(5);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                chan.write(1);
+            }).start();
+            assertSame(chan, selector.select().channel());
+            for (Channel<Integer> c : chans)
+                assertFalse(c.hasWaitingReader());
+        }
+    }
+
+    @Test
+    void selectAll() throws InterruptedException {
+        Channel<Integer> chan1 = new Channel<>(4);
+        Channel<Integer> chan2 = new Channel<>(4);
+        Channel<Integer> chan3 = new Channel<>();
+        Channel<Integer> out = new Channel<>(1);
+        chan1.write(1);
+        chan2.write(2);
+        Selector selector = Selector.open()
+                .register(chan1, read())
+                .register(chan2, read())
+                .register(chan3, read())
+                .register(out, write(4));
+        List<SelectionKey<?>> ready = selector.selectAll();
+        assertEquals(3, ready.size());
+        Set<Object> data = new HashSet<>();
+        for (SelectionKey<?> key : ready)
+            data.add(key.type() == READ ? key.data() : key.channel());
+        assertEquals(Set.of(1, 2, out), data);
+        assertEquals(4, out.read());
+
+        //都没有就绪时阻塞到有一个完成
+        out.write(5);
+        new Thread(() -> chan3.write(3)).start();
+        ready = selector.selectAll();
+        assertEquals(1, ready.size());
+        assertSame(chan3, ready.get(0).channel());
+        assertEquals(3, ready.get(0).data());
+
+        Selector withFallback = Selector.open()
+                .register(chan1, read())
+                .fallback(fallback());
+        List<SelectionKey<?>> keys = new ArrayList<>();
+        assertEquals(1, withFallback.selectReady(keys));
+        assertEquals(FALLBACK, keys.get(0).type());
+    }
+
+    @Test
+    void selectAsync() throws Exception {
+        Channel<Integer> chan1 = new Channel<>();
+        Channel<Integer> chan2 = new Channel<>();
+        Selector selector = Selector.open()
+                .register(chan1, read())
+                .register(chan2, write(2));
+        CompletableFuture<SelectionKey<?>> future = selector.selectAsync();
+        assertFalse(future.isDone());
+        chan1.write(1);
+        SelectionKey<?> key = future.get(1, TimeUnit.SECONDS);
+        assertSame(chan1, key.channel());
+        assertEquals(1, key.data());
+        assertFalse(chan2.hasWaitingWriter());
+
+        future = selector.selectAsync();
+        assertEquals(2, chan2.read());
+        assertSame(chan2, future.get(1, TimeUnit.SECONDS).channel());
+
+        //已经就绪时直接完成
+        new Thread(() -> chan1.write(3)).start();
+        while (!chan1.hasWaitingWriter())
+            TimeUnit.MILLISECONDS.sleep(1);
+        future = selector.selectAsync();
+        assertTrue(future.isDone());
+        assertEquals(3, future.get().data());
+
+        //取消之后节点被摘掉
+        selector.selectAsync().cancel(false);
+        assertFalse(chan1.hasWaitingReader());
+        assertFalse(chan2.hasWaitingWriter());
+
+        CompletableFuture<SelectionKey<?>> closed = selector.selectAsync();
+        chan2.close();
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> closed.get(1, TimeUnit.SECONDS));
+        assertTrue(ex.getCause() instanceof ChannelAlreadyClosedException);
+    }
+
+    /**
+     * 两个异步select互相读写
+     */
+    @Test
+    void selectAsyncAgainstSelectAsync() throws Exception {
+        Channel<Integer> chan = new Channel<>();
+        Selector reader = Selector.open().register(chan, read());
+        Selector writer = Selector.open().register(chan, write(1));
+        for (int i = 0; i < 1000; i++) {
+            CompletableFuture<SelectionKey<?>> read = reader.selectAsync();
+            CompletableFuture<SelectionKey<?>> write = writer.selectAsync();
+            assertEquals(1, read.get(1, TimeUnit.SECONDS).data());
+            write.get(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void registerSameChannelTwice() throws Exception {
+        Channel<Integer> chan = new Channel<>();
+        Channel<Integer> other = new Channel<>();
+        Selector selector = Selector.open()
+                .register(chan, read())
+                .register(other, read())
+                .register(chan, read());
+        Field lockOrder = Selector.class.getDeclaredField("lockOrder");
+        lockOrder.setAccessible(true);
+        assertEquals(2, ((Channel<?>[]) lockOrder.get(selector)).length);
+
+        assertThrows(TimeoutException.class, () -> selector.select(50, TimeUnit.MILLISECONDS));
+        assertFalse(chan.hasWaitingReader());
+        assertFalse(other.hasWaitingReader());
+
+        new Thread(() -> chan.write(1)).start();
+        SelectionKey<?> key = selector.select(1, TimeUnit.SECONDS);
+        assertSame(chan, key.channel());
+        assertEquals(1, key.data());
+        assertFalse(chan.hasWaitingReader());
+    }
+
+    /**
+     * 同一个select在同一个channel上又读又写，不能和自己交换
+     */
+    @Test
+    void selectDoesNotMatchItself() throws Exception {
+        Channel<Integer> chan = new Channel<>();
+        Selector selector = Selector.open()
+                .register(chan, read())
+                .register(chan, write(1));
+        assertThrows(TimeoutException.class, () -> selector.select(50, TimeUnit.MILLISECONDS));
+        assertFalse(chan.hasWaitingReader());
+        assertFalse(chan.hasWaitingWriter());
+
+        new Thread(() -> chan.write(2)).start();
+        SelectionKey<?> key = selector.select(1, TimeUnit.SECONDS);
+        assertEquals(READ, key.type());
+        assertEquals(2, key.data());
+    }
+
+    /**
+     * 两个select互相读写，只能靠第二阶段加锁入队时和对方的节点交换
+     */
+    @RepeatedTest(10)
+    void selectAgainstSelect() {
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            int n = 1000;
+            Channel<Integer> chan1 = new Channel<>();
+            Channel<Integer> chan2 = new Channel<>();
+            AtomicInteger received = new AtomicInteger();
+            Thread peer = new Thread(() -> {
+                Selector selector = Selector.open()
+                        .register(chan1, read())
+                        .register(chan2, write(2));
+                for (int i = 0; i < n; i++)
+                    if (selector.select().type() == READ)
+                        received.incrementAndGet();
+            });
+            peer.start();
+            Selector selector = Selector.open()
+                    .register(chan1, write(1))
+                    .register(chan2, read());
+            int sent = 0;
+            for (int i = 0; i < n; i++)
+                if (selector.select().type() == WRITE)
+                    sent++;
+            peer.join();
+            assertEquals(sent, received.get());
+        });
+    }
+
+    @Test
+    void selectPrimitive() throws InterruptedException {
+        IntChannel ints = new IntChannel();
+        DoubleChannel doubles = new DoubleChannel(1);
+        new Thread(() -> ints.writeInt(42)).start();
+        SelectionKey<?> key = Selector.open()
+                .register(ints, readInt())
+                .register(doubles, readDouble())
+                .select();
+        assertSame(ints, key.channel());
+        assertEquals(42, key.intData());
+        assertEquals(42, key.data());
+
+        Selector selector = Selector.open()
+                .register(doubles, writeDouble(1.5));
+        assertSame(doubles, selector.select().channel());
+        assertEquals(1.5, doubles.readDouble());
+
+        //普通的key也能注册到原始类型的channel上，原始类型的key只能注册到对应的channel上
+        LongChannel longs = new LongChannel();
+        new Thread(() -> longs.write(7L)).start();
+        assertEquals(7L, Selector.open().register(longs, read()).select().data());
+        assertThrows(IllegalArgumentException.class, () -> Selector.open()
+                .register(new Channel<Integer>(), readInt()));
+
+        longs.close();
+        key = Selector.open().register(longs, readLong()).select();
+        assertTrue(key.isClosed());
+        assertNull(key.data());
+    }
+
+    @Test
+    void selectByteChannel() throws InterruptedException {
+        ByteChannel bytes = new ByteChannel(16);
+        Channel<Integer> chan = new Channel<>();
+        new Thread(() -> bytes.write(ByteBuffer.wrap(new byte[]{1, 2}))).start();
+        SelectionKey<?> key = Selector.open()
+                .register(bytes, read())
+                .register(chan, read())
+                .select();
+        assertEquals(ByteBuffer.wrap(new byte[]{1, 2}), key.data());
+
+        assertThrows(IllegalArgumentException.class, () -> Selector.open()
+                .register(bytes, write(ByteBuffer.allocate(13))));
+        Selector.open().register(bytes, write(ByteBuffer.allocate(12))).select();
+        assertEquals(12, bytes.read().remaining());
+    }
+
+    @Test
+    void selectOnSpscChannel() throws InterruptedException {
+        Channel<Integer> spsc = Channel.<Integer>builder().bufferSize(4).spsc(true).build();
+        Channel<Integer> other = new Channel<>();
+        int n = 10000;
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < n; i++)
+                spsc.write(i);
+        });
+        writer.start();
+        Selector selector = Selector.open()
+                .register(spsc, read())
+                .register(other, read());
+        for (int i = 0; i < n; i++)
+            assertEquals(i, selector.select().data());
+        writer.join();
+    }
+
+    @Test
+    void selectOnSubscription() throws InterruptedException {
+        BroadcastChannel<Integer> broadcast = new BroadcastChannel<>(16);
+        Channel<Integer> subscription1 = broadcast.subscribe();
+        Channel<Integer> subscription2 = broadcast.subscribe();
+        Selector selector = Selector.open()
+                .register(subscription1, read())
+                .register(subscription2, read());
+        new Thread(() -> broadcast.write(1)).start();
+        SelectionKey<?> key1 = selector.select();
+        SelectionKey<?> key2 = selector.select();
+        assertEquals(1, key1.data());
+        assertEquals(1, key2.data());
+        assertNotSame(key1.channel(), key2.channel());
+        assertThrows(IllegalArgumentException.class, () -> Selector.open()
+                .register(subscription1, write(2)));
+    }
+
+    @Test
+    void selectTimeout() throws Exception {
+        Channel<Integer> chan1 = new Channel<>();
+        Channel<Integer> chan2 = new Channel<>(1);
+        chan2.write(1);
+        assertThrows(TimeoutException.class, () -> Selector.open()
+                .register(chan1, read())
+                .register(chan2, write(2))
+                .select(50, TimeUnit.MILLISECONDS));
+
+        //超时的select不能再被选中
+        assertThrows(TimeoutException.class, () -> chan1.write(1, 50, TimeUnit.MILLISECONDS));
+        assertEquals(1, chan2.read());
+        assertThrows(TimeoutException.class, () -> chan2.read(50, TimeUnit.MILLISECONDS));
+
+        new Thread(() -> chan1.write(3)).start();
+        SelectionKey<?> key = Selector.open()
+                .register(chan1, read())
+                .select(1, TimeUnit.SECONDS);
+        assertEquals(3, key.data());
+    }
+
     @RepeatedTest(10)
     void selectTest() throws InterruptedException {
         Channel<Object> chan1 = new Channel<>();
@@ -206,9 +590,9 @@ public class SelectorTest {
 
         ExecutorService executorService = Executors.newFixedThreadPool(chanCnt * threadPerChan);
 
-        Channel<Integer>[] chans = ((Channel<Integer>[]) new Channel[chanCnt]);
-        for (int j = 0; j < chans.length; j++) {
-            chans[j] = new Channel<>();
+        List<Channel<Integer>> chans = new ArrayList<>();
+        for (int j = 0; j < chanCnt; j++) {
+            chans.add(new Channel<>());
         }
 
         CountDownLatch latch = new CountDownLatch(selectCnt);
@@ -222,7 +606,7 @@ public class SelectorTest {
 
         for (int i = 0; i < chanCnt; i++) {
             int finalI = i;
-            Channel<Integer> chan = chans[i];
+            Channel<Integer> chan = chans.get(i);
 
             final boolean isSend = --tmpSendCnt >= 0 || --tmpReceiveCnt < 0;
             for (int j = 0; j < threadPerChan; j++) {
@@ -250,10 +634,10 @@ public class SelectorTest {
         for (int i = 0; i < selectCnt; i++) {
             Selector select = Selector.open();
             for (int j = 0; j < sendCnt; j++) {
-                select.register(chans[j], read());
+                select.register(chans.get(j), read());
             }
             for (int j = 0; j < receiveCnt; j++) {
-                select.register(chans[sendCnt + j], write(i));
+                select.register(chans.get(sendCnt + j), write(i));
             }
             if (hasDefault)
                 select.fallback(fallback());
@@ -290,18 +674,18 @@ public class SelectorTest {
 
 
         for (int i = 0; i < testCnt; i++) {
-            Channel<Integer>[] chan = ((Channel<Integer>[]) new Channel[chanCnt]);
-            for (int j = 0; j < chan.length; j++) {
-                chan[j] = new Channel<>();
+            List<Channel<Integer>> chan = new ArrayList<>();
+            for (int j = 0; j < chanCnt; j++) {
+                chan.add(new Channel<>());
             }
 
-            CountDownLatch latch = new CountDownLatch(chan.length);
+            CountDownLatch latch = new CountDownLatch(chan.size());
 
-            for (int j = 0; j < chan.length; j++) {
+            for (int j = 0; j < chan.size(); j++) {
                 int finalJ = j;
                 new Thread(() -> {
                     latch.countDown();
-                    chan[finalJ].read();
+                    chan.get(finalJ).read();
                 }).start();
             }
 
@@ -309,9 +693,9 @@ public class SelectorTest {
             latch.await();
 
             Selector select = Selector.open();
-            for (int j = 0; j < chan.length; j++) {
+            for (int j = 0; j < chan.size(); j++) {
                 int finalJ = j;
-                select.register(chan[j], write(finalJ));
+                select.register(chan.get(j), write(finalJ));
             }
             SelectionKey<?> key = select.select();
             cnts[((Integer) key.data())].incrementAndGet();
@@ -320,4 +704,82 @@ public class SelectorTest {
             System.out.println(String.format("chan %d was selected %d times", j, cnts[j].get()));
         }
     }
+
+    @Test
+    void stats() {
+        Channel<Integer> chan1 = new Channel<>(1);
+        Channel<Integer> chan2 = new Channel<>(1);
+        Selector selector = Selector.open()
+                .register(chan1, read())
+                .register(chan2, read())
+                .fallback(fallback())
+                .metrics(true);
+        chan2.write(1);
+        assertSame(chan2, selector.select().channel());
+        assertEquals(FALLBACK, selector.select().type());
+        chan1.write(1);
+        assertSame(chan1, selector.select().channel());
+
+        SelectorStats stats = selector.stats();
+        assertEquals(3, stats.selects());
+        assertEquals(1, stats.fallbacks());
+        assertEquals(1.0 / 3, stats.fallbackRate(), 1e-9);
+        assertArrayEquals(new long[]{1, 1}, stats.wins());
+        assertNull(Selector.open().stats());
+    }
+
+    /**
+     * select不阻塞地读ByteChannel时也复用线程的暂存区，不为每条记录分配堆外内存
+     */
+    @Test
+    void selectByteChannelReusesScratch() {
+        ByteChannel channel = new ByteChannel(64);
+        Selector selector = Selector.open().register(channel, read());
+        channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        selector.select();
+        long allocations = ByteChannel.SCRATCH_ALLOCATIONS.sum();
+        for (int i = 0; i < 1000; i++) {
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) i}));
+            SelectionKey<?> key = selector.select();
+            assertEquals(ByteBuffer.wrap(new byte[]{(byte) i}), key.data());
+        }
+        assertEquals(allocations, ByteChannel.SCRATCH_ALLOCATIONS.sum());
+    }
+
+    @Test
+    void selectWriteByteChannelWaitsForRoom() {
+        ByteChannel channel = new ByteChannel(32);
+        channel.write(ByteBuffer.wrap(new byte[20]));
+        //还剩8字节，放得下记录头，放不下这条记录
+        selectWriteWaitsForRoom(channel, ByteBuffer.wrap(new byte[10]), ByteBuffer.wrap(new byte[20]));
+    }
+
+    @Test
+    void selectWriteMappedChannelWaitsForRoom(@TempDir Path dir) {
+        MappedChannel<String> channel = new MappedChannel<>(dir.resolve("chan"), 32, Serializer.utf8());
+        try {
+            channel.write("01234567890123456789");
+            selectWriteWaitsForRoom(channel, "0123456789", "01234567890123456789");
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * 缓冲区没满但放不下select要写的记录时，select入队park，等读者腾出空间，不能被反复选中又写不进去
+     */
+    static <T> void selectWriteWaitsForRoom(Channel<T> channel, T data, T buffered) {
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            Selector selector = Selector.open().metrics(true).register(channel, write(data));
+            Thread thread = new Thread(selector::select);
+            thread.start();
+            while (thread.getState() != Thread.State.WAITING)
+                Thread.onSpinWait();
+            assertTrue(channel.hasWaitingWriter());
+            assertEquals(buffered, channel.read());
+            thread.join();
+            assertEquals(1, selector.stats().parks());
+            assertEquals(data, channel.read());
+        });
+    }
 }